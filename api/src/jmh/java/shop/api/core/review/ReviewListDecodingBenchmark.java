@@ -0,0 +1,58 @@
+package shop.api.core.review;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.databind.SmileMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Decode cost of a list of reviews, as received by the composite service, in JSON and in Smile.
+ */
+@State(Scope.Benchmark)
+public class ReviewListDecodingBenchmark {
+
+    private static final TypeReference<List<Review>> REVIEW_LIST = new TypeReference<>() {
+    };
+
+    @Param({"1", "10", "100"})
+    private int reviews;
+
+    private ObjectMapper jsonMapper;
+    private ObjectMapper smileMapper;
+    private byte[] json;
+    private byte[] smile;
+
+    @Setup
+    public void setUp() throws IOException {
+        jsonMapper = new ObjectMapper().registerModule(new JavaTimeModule());
+        smileMapper = new SmileMapper().registerModule(new JavaTimeModule());
+
+        List<Review> list = IntStream.rangeClosed(1, reviews)
+                .mapToObj(i -> new Review(1, i, "Author " + i, "Subject " + i,
+                        "Some content for review " + i + " that is about as long as a typical short review.",
+                        1 + i % 5, LocalDate.of(2025, 1, 1).plusDays(i), "review-service/172.18.0.5:8080"))
+                .toList();
+        json = jsonMapper.writeValueAsBytes(list);
+        smile = smileMapper.writeValueAsBytes(list);
+    }
+
+    @Benchmark
+    public List<Review> decodeJson() throws IOException {
+        return jsonMapper.readValue(json, REVIEW_LIST);
+    }
+
+    @Benchmark
+    public List<Review> decodeSmile() throws IOException {
+        return smileMapper.readValue(smile, REVIEW_LIST);
+    }
+}
@@ -1,13 +1,56 @@
 package shop.api.composite.product;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+
 import java.util.List;
 
+/**
+ * Parts that were not asked for with the "include" parameter are null and left out of the response.
+ * <p>
+ * recommendationsStale and reviewsStale are set when the core service could not be reached and the
+ * recommendations or reviews were served from the last known good copy, or left empty if there was none.
+ * <p>
+ * reviewStats is only included when asked for, and left out if the review service could not be reached.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
 public record ProductAggregate(
         int productId,
         String name,
-        int weight,
+        Integer weight,
         List<RecommendationSummary> recommendations,
         List<ReviewSummary> reviews,
-        ServiceAddresses serviceAddresses
+        ReviewStatsSummary reviewStats,
+        ServiceAddresses serviceAddresses,
+        boolean recommendationsStale,
+        boolean reviewsStale
 ) {
+
+    public ProductAggregate(
+            int productId,
+            String name,
+            Integer weight,
+            List<RecommendationSummary> recommendations,
+            List<ReviewSummary> reviews,
+            ServiceAddresses serviceAddresses,
+            boolean recommendationsStale,
+            boolean reviewsStale
+    ) {
+        this(productId, name, weight, recommendations, reviews, null, serviceAddresses, recommendationsStale, reviewsStale);
+    }
+
+    public ProductAggregate(
+            int productId,
+            String name,
+            Integer weight,
+            List<RecommendationSummary> recommendations,
+            List<ReviewSummary> reviews,
+            ServiceAddresses serviceAddresses
+    ) {
+        this(productId, name, weight, recommendations, reviews, null, serviceAddresses, false, false);
+    }
+
+    public ProductAggregate withReviewStats(ReviewStatsSummary reviewStats) {
+        return new ProductAggregate(productId, name, weight, recommendations, reviews, reviewStats, serviceAddresses,
+                recommendationsStale, reviewsStale);
+    }
 }
@@ -9,6 +9,8 @@ import org.springframework.web.bind.annotation.*;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.util.List;
+
 @Tag(name = "ProductComposite", description = "REST API for composite product information.")
 public interface ProductCompositeService {
 
@@ -36,8 +38,15 @@ public interface ProductCompositeService {
 
     /**
      * Sample usage: "curl $HOST:$PORT/product-composite/1".
+     * <p>
+     * Use "include" to ask for parts of the aggregate only, e.g. "curl $HOST:$PORT/product-composite/1?include=product"
+     * for name and weight. Only the core services that hold the requested parts are called. If the product is not asked
+     * for and the requested parts are empty, the product service is called as well, to answer 404 for an unknown product.
+     * The review statistics are only included if asked for, e.g. "?include=product,stats" gives the product with its
+     * review statistics but without the reviews themselves.
      *
      * @param productId ID of the product
+     * @param include   the parts to include, any of "product", "recommendations", "reviews" and "stats", all but "stats" if not set
      * @return the composite product info, if found, else null
      */
     @Operation(
@@ -52,13 +61,27 @@ public interface ProductCompositeService {
     @GetMapping(
             value = "/product-composite/{productId}",
             produces = "application/json")
-    Mono<ProductAggregate> getProduct(@PathVariable int productId);
+    Mono<ProductAggregate> getProduct(
+            @PathVariable int productId,
+            @RequestParam(value = "include", required = false) List<String> include);
 
+    /**
+     * Sample usage: "curl $HOST:$PORT/product-composite".
+     * <p>
+     * Request "application/x-ndjson" or "text/event-stream" to get the aggregates streamed
+     * one by one instead of as a single JSON array, e.g.
+     * "curl -H 'Accept: application/x-ndjson' $HOST:$PORT/product-composite".
+     * The "include" parameter works as for a single product, e.g. "?include=product" skips
+     * the calls to the recommendation and review services.
+     *
+     * @param include the parts to include, any of "product", "recommendations", "reviews" and "stats", all but "stats" if not set
+     * @return the composite product info of all products, ordered as returned by the product service
+     */
     @GetMapping(
             value = "/product-composite",
-            produces = "application/json"
+            produces = {"application/json", "application/x-ndjson", "text/event-stream"}
     )
-    Flux<ProductAggregate> getAllProducts();
+    Flux<ProductAggregate> getAllProducts(@RequestParam(value = "include", required = false) List<String> include);
 
     /**
      * Sample usage: "curl -X DELETE $HOST:$PORT/product-composite/1".
@@ -90,4 +113,30 @@ public interface ProductCompositeService {
             produces = "application/json"
     )
     Flux<ReviewSummary> getReviews(@PathVariable int productId);
+
+    /**
+     * Sample usage: "curl $HOST:$PORT/product-composite/reviews/1?limit=20", then pass the returned nextCursor as
+     * "after" to get the next page.
+     *
+     * @param productId ID of the product
+     * @param after     the nextCursor of the previous page, not set for the first page
+     * @param limit     max number of reviews to return
+     * @return a page of the reviews of the product, newest first, with the cursor of the next page
+     */
+    @Operation(
+            summary = "${api.product-composite.get-review-page.description}",
+            description = "${api.product-composite.get-review-page.notes}")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "${api.responseCodes.ok.description}"),
+            @ApiResponse(responseCode = "422", description = "${api.responseCodes.unprocessableEntity.description}")
+    })
+    @GetMapping(
+            value = "/product-composite/reviews/{productId}",
+            params = "limit",
+            produces = "application/json"
+    )
+    Mono<ReviewSummaryPage> getReviewPage(
+            @PathVariable int productId,
+            @RequestParam(value = "after", required = false) String after,
+            @RequestParam int limit);
 }
@@ -0,0 +1,12 @@
+package shop.api.composite.product;
+
+import java.time.LocalDate;
+import java.util.Map;
+
+public record ReviewStatsSummary(
+        int count,
+        Double averageRating,
+        Map<Integer, Integer> ratingHistogram,
+        LocalDate latestReviewDate
+) {
+}
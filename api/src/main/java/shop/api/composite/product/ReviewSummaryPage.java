@@ -0,0 +1,13 @@
+package shop.api.composite.product;
+
+import java.util.List;
+
+/**
+ * One page of the reviews of a product, newest first. nextCursor is the value to pass as "after" to get the next page,
+ * or null if this is the last page.
+ */
+public record ReviewSummaryPage(
+        List<ReviewSummary> reviews,
+        String nextCursor
+) {
+}
@@ -0,0 +1,13 @@
+package shop.api.core.product;
+
+import java.util.List;
+
+/**
+ * One page of products ordered by productId. nextCursor is the value to pass as "after" to get the next page,
+ * or null if this is the last page.
+ */
+public record ProductPage(
+        List<Product> products,
+        Integer nextCursor
+) {
+}
@@ -2,6 +2,7 @@ package shop.api.core.product;
 
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestParam;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
@@ -19,11 +20,26 @@ public interface ProductService {
      */
     @GetMapping(
             value = "/product/{productId}",
-            produces = "application/json")
+            produces = {"application/json", "application/x-jackson-smile"})
     Mono<Product> getProduct(@PathVariable("productId") int productId);
 
     @GetMapping(
             value = "/product",
-            produces = "application/json")
+            produces = {"application/json", "application/x-jackson-smile"})
     Flux<Product> getAllProducts();
+
+    /**
+     * Sample usage: "curl $HOST:$PORT/product?after=100&limit=50".
+     *
+     * @param after return products with a productId greater than this, 0 for the first page
+     * @param limit max number of products to return
+     * @return a page of products ordered by productId, with the cursor of the next page
+     */
+    @GetMapping(
+            value = "/product",
+            params = "limit",
+            produces = {"application/json", "application/x-jackson-smile"})
+    Mono<ProductPage> getProducts(
+            @RequestParam(value = "after", required = false, defaultValue = "0") int after,
+            @RequestParam int limit);
 }
@@ -5,10 +5,20 @@ import org.springframework.web.bind.annotation.RequestParam;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.util.List;
+
 public interface RecommendationService {
 
     Mono<Recommendation> createRecommendation(Recommendation body);
 
+    /**
+     * Creates all recommendations in one bulk write.
+     *
+     * @param body the recommendations to create
+     * @return the created recommendations
+     */
+    Flux<Recommendation> createRecommendations(List<Recommendation> body);
+
     Mono<Void> deleteRecommendations(int productId);
 
     /**
@@ -19,6 +29,18 @@ public interface RecommendationService {
      */
     @GetMapping(
             value = "/recommendation",
-            produces = "application/json")
+            produces = {"application/json", "application/x-jackson-smile"})
     Flux<Recommendation> getRecommendations(@RequestParam int productId);
+
+    /**
+     * Sample usage: "curl $HOST:$PORT/recommendation?productIds=1,2,3".
+     *
+     * @param productIds IDs of the products
+     * @return the recommendations of all the products, in no particular order
+     */
+    @GetMapping(
+            value = "/recommendation",
+            params = "productIds",
+            produces = {"application/json", "application/x-jackson-smile"})
+    Flux<Recommendation> getRecommendationsByProductIds(@RequestParam List<Integer> productIds);
 }
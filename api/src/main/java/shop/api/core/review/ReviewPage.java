@@ -0,0 +1,13 @@
+package shop.api.core.review;
+
+import java.util.List;
+
+/**
+ * One page of the reviews of a product, newest first. nextCursor is the value to pass as "after" to get the next page,
+ * or null if this is the last page.
+ */
+public record ReviewPage(
+        List<Review> reviews,
+        String nextCursor
+) {
+}
@@ -5,10 +5,20 @@ import org.springframework.web.bind.annotation.RequestParam;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.util.List;
+
 public interface ReviewService {
 
     Mono<Review> createReview(Review body);
 
+    /**
+     * Creates all reviews in one bulk write.
+     *
+     * @param body the reviews to create
+     * @return the created reviews
+     */
+    Flux<Review> createReviews(List<Review> body);
+
     Mono<Void> deleteReviews(int productId);
 
     /**
@@ -19,6 +29,58 @@ public interface ReviewService {
      */
     @GetMapping(
             value = "/review",
-            produces = "application/json")
+            produces = {"application/json", "application/x-jackson-smile"})
     Flux<Review> getReviews(@RequestParam int productId);
+
+    /**
+     * Sample usage: "curl $HOST:$PORT/review?productId=1&limit=20", then "curl $HOST:$PORT/review?productId=1&after=2024-05-01_17&limit=20".
+     *
+     * @param productId ID of the product
+     * @param after     the nextCursor of the previous page, not set for the first page
+     * @param limit     max number of reviews to return
+     * @return a page of the reviews of the product ordered by date and reviewId, newest first, with the cursor of the next page
+     */
+    @GetMapping(
+            value = "/review",
+            params = "limit",
+            produces = {"application/json", "application/x-jackson-smile"})
+    Mono<ReviewPage> getReviewPage(
+            @RequestParam int productId,
+            @RequestParam(value = "after", required = false) String after,
+            @RequestParam int limit);
+
+    /**
+     * Sample usage: "curl $HOST:$PORT/review?productIds=1,2,3".
+     *
+     * @param productIds IDs of the products
+     * @return the reviews of all the products, in no particular order
+     */
+    @GetMapping(
+            value = "/review",
+            params = "productIds",
+            produces = {"application/json", "application/x-jackson-smile"})
+    Flux<Review> getReviewsByProductIds(@RequestParam List<Integer> productIds);
+
+    /**
+     * Sample usage: "curl $HOST:$PORT/review/stats?productId=1".
+     *
+     * @param productId ID of the product
+     * @return the review statistics of the product, with a count of 0 if it has no reviews
+     */
+    @GetMapping(
+            value = "/review/stats",
+            produces = {"application/json", "application/x-jackson-smile"})
+    Mono<ReviewStats> getReviewStats(@RequestParam int productId);
+
+    /**
+     * Sample usage: "curl $HOST:$PORT/review/stats?productIds=1,2,3".
+     *
+     * @param productIds IDs of the products
+     * @return the review statistics of the products that have reviews, in no particular order
+     */
+    @GetMapping(
+            value = "/review/stats",
+            params = "productIds",
+            produces = {"application/json", "application/x-jackson-smile"})
+    Flux<ReviewStats> getReviewStatsByProductIds(@RequestParam List<Integer> productIds);
 }
@@ -0,0 +1,26 @@
+package shop.api.core.review;
+
+import java.time.LocalDate;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Statistics of the reviews of a product. The rating histogram counts the reviews per rating, ordered from 1 to 5, and
+ * the average rating is null if the product has no reviews.
+ */
+public record ReviewStats(
+        int productId,
+        int count,
+        Double averageRating,
+        Map<Integer, Integer> ratingHistogram,
+        LocalDate latestReviewDate,
+        String serviceAddress
+) {
+    public static ReviewStats none(int productId) {
+        return new ReviewStats(productId, 0, null, new TreeMap<>(Map.of(1, 0, 2, 0, 3, 0, 4, 0, 5, 0)), null, null);
+    }
+
+    public ReviewStats withServiceAddress(String serviceAddress) {
+        return new ReviewStats(productId, count, averageRating, ratingHistogram, latestReviewDate, serviceAddress);
+    }
+}
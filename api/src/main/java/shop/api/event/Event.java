@@ -4,30 +4,56 @@ import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 import com.fasterxml.jackson.datatype.jsr310.ser.ZonedDateTimeSerializer;
 
 import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.UUID;
 
 import static java.time.ZonedDateTime.now;
 
 public class Event<K, T> {
 
+    private final UUID eventId;
     private final Type eventType;
     private final K key;
     private final T data;
+    private final List<T> batch;
     private final ZonedDateTime eventCreatedAt;
 
     public Event() {
+        this.eventId = null;
         this.eventType = null;
         this.key = null;
         this.data = null;
+        this.batch = null;
         this.eventCreatedAt = null;
     }
 
     public Event(Type eventType, K key, T data) {
+        this(eventType, key, data, null);
+    }
+
+    private Event(Type eventType, K key, T data, List<T> batch) {
+        this.eventId = UUID.randomUUID();
         this.eventType = eventType;
         this.key = key;
         this.data = data;
+        this.batch = batch;
         this.eventCreatedAt = now();
     }
 
+    /**
+     * Creates a CREATE_BATCH event, carrying all entities to create for the key in one message.
+     */
+    public static <K, T> Event<K, T> createBatch(K key, List<T> batch) {
+        return new Event<>(Type.CREATE_BATCH, key, null, batch);
+    }
+
+    /**
+     * Identifies the event, also when it is redelivered. Events from producers that don't set it have no id.
+     */
+    public UUID getEventId() {
+        return eventId;
+    }
+
     public Type getEventType() {
         return eventType;
     }
@@ -40,6 +66,10 @@ public class Event<K, T> {
         return data;
     }
 
+    public List<T> getBatch() {
+        return batch;
+    }
+
     @JsonSerialize(using = ZonedDateTimeSerializer.class)
     public ZonedDateTime getEventCreatedAt() {
         return eventCreatedAt;
@@ -47,6 +77,7 @@ public class Event<K, T> {
 
     public enum Type {
         CREATE,
+        CREATE_BATCH,
         DELETE
     }
 }
\ No newline at end of file
@@ -0,0 +1,91 @@
+package shop.microservices.composite.product.services;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.HttpProtocol;
+import reactor.netty.http.server.HttpServer;
+
+import java.net.SocketAddress;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Latency of the downstream WebClients in h2c and in HTTP/1.1 mode, against a local Netty server that accepts both,
+ * with 64 requests in flight. The sample mode reports the percentiles, p0.99 among them, and the number of
+ * connections the client's pool opened to the server is printed at the end of each trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DownstreamProtocolBenchmark {
+
+    @Param({"false", "true"})
+    private boolean http2;
+
+    // Time the server takes to answer, like a core service reading from its database
+    @Param({"2"})
+    private int serverDelayMillis;
+
+    private DisposableServer server;
+    private DownstreamWebClients downstreamWebClients;
+    private WebClient client;
+    private final Set<SocketAddress> connections = ConcurrentHashMap.newKeySet();
+
+    @Setup
+    public void setUp() {
+        String reviews = IntStream.rangeClosed(1, 3)
+                .mapToObj(i -> "{\"productId\":1,\"reviewId\":" + i + ",\"author\":\"Author " + i + "\",\"subject\":\"Subject " + i
+                        + "\",\"content\":\"Some content for review " + i + "\",\"rating\":" + (1 + i % 5)
+                        + ",\"reviewDate\":\"2025-01-01\",\"serviceAddress\":\"review-service/172.18.0.5:8080\"}")
+                .collect(Collectors.joining(",", "[", "]"));
+
+        // Every stream of an h2c connection comes from the same remote address, so the addresses count the connections
+        server = HttpServer.create()
+                .host("localhost")
+                .port(0)
+                .protocol(HttpProtocol.HTTP11, HttpProtocol.H2C)
+                .doOnConnection(connection -> connections.add(connection.channel().remoteAddress()))
+                .route(routes -> routes.get("/review", (_, response) -> response
+                        .header("Content-Type", "application/json")
+                        .sendString(Mono.delay(Duration.ofMillis(serverDelayMillis)).map(_ -> reviews))))
+                .bindNow();
+
+        // The pools are configured as in the composite service by default, without load balancing and Smile
+        downstreamWebClients = new DownstreamWebClients(WebClient.builder(), new StandardEnvironment(), http2, 2, 100, false);
+        client = downstreamWebClients.create("review");
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.out.println();
+        System.out.println("Connections opened with " + (http2 ? "h2c" : "HTTP/1.1") + ": " + connections.size());
+        downstreamWebClients.dispose();
+        server.disposeNow();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public String getReviews() {
+        return client.get()
+                .uri("http://localhost:" + server.port() + "/review?productId=1")
+                .retrieve()
+                .bodyToMono(String.class)
+                .block();
+    }
+}
@@ -5,7 +5,7 @@ import org.springframework.boot.actuate.health.ReactiveHealthContributor;
 import org.springframework.boot.actuate.health.ReactiveHealthIndicator;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
-import shop.microservices.composite.product.services.ProductCompositeIntegration;
+import shop.microservices.composite.product.services.CoreServiceHealthPoller;
 
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -13,19 +13,20 @@ import java.util.Map;
 @Configuration
 public class HealthCheckConfiguration {
 
-    private final ProductCompositeIntegration integration;
+    private final CoreServiceHealthPoller healthPoller;
 
-    public HealthCheckConfiguration(ProductCompositeIntegration integration) {
-        this.integration = integration;
+    public HealthCheckConfiguration(CoreServiceHealthPoller healthPoller) {
+        this.healthPoller = healthPoller;
     }
 
     @Bean
     ReactiveHealthContributor coreServices() {
         final Map<String, ReactiveHealthIndicator> registry = new LinkedHashMap<>();
 
-        registry.put("product", integration::getProductHealth);
-        registry.put("recommendation", integration::getRecommendationHealth);
-        registry.put("review", integration::getReviewHealth);
+        // Served from the results of the background polling, a health request never calls the core services
+        registry.put("product", () -> healthPoller.getHealth("product"));
+        registry.put("recommendation", () -> healthPoller.getHealth("recommendation"));
+        registry.put("review", () -> healthPoller.getHealth("review"));
 
         return CompositeReactiveHealthContributor.fromMap(registry);
     }
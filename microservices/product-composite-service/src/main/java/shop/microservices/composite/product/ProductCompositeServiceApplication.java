@@ -19,6 +19,7 @@ public class ProductCompositeServiceApplication {
 
     private final Integer threadPoolSize;
     private final Integer taskQueueSize;
+    private final int maxOutstandingConfirms;
 
     public static void main(String[] args) {
         SpringApplication.run(ProductCompositeServiceApplication.class, args);
@@ -27,15 +28,22 @@ public class ProductCompositeServiceApplication {
     @Autowired
     public ProductCompositeServiceApplication(
             @Value("${app.threadPoolSize:10}") Integer threadPoolSize,
-            @Value("${app.taskQueueSize:100}") Integer taskQueueSize
+            @Value("${app.taskQueueSize:100}") Integer taskQueueSize,
+            @Value("${app.publisher.maxOutstandingConfirms:256}") int maxOutstandingConfirms
     ) {
         this.threadPoolSize = threadPoolSize;
         this.taskQueueSize = taskQueueSize;
+        this.maxOutstandingConfirms = maxOutstandingConfirms;
     }
 
+    /**
+     * Every publish holding one of the app.publisher.maxOutstandingConfirms slots of the EventPublisher can have its send
+     * waiting here, so the queue takes at least that many tasks. Otherwise a burst of publishes would be rejected by
+     * the scheduler instead of being held back by the EventPublisher.
+     */
     @Bean
     public Scheduler publishEventScheduler() {
-        return Schedulers.newBoundedElastic(threadPoolSize, taskQueueSize, "publish-pool");
+        return Schedulers.newBoundedElastic(threadPoolSize, Math.max(taskQueueSize, maxOutstandingConfirms), "publish-pool");
     }
 
     @Bean
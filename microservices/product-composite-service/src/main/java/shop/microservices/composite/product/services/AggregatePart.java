@@ -0,0 +1,43 @@
+package shop.microservices.composite.product.services;
+
+import shop.api.exceptions.InvalidInputException;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * The parts of a product aggregate that can be asked for with the "include" parameter. The review statistics are
+ * only included if asked for.
+ */
+public enum AggregatePart {
+    PRODUCT,
+    RECOMMENDATIONS,
+    REVIEWS,
+    STATS;
+
+    public static final Set<AggregatePart> DEFAULT_PARTS = Collections.unmodifiableSet(EnumSet.of(PRODUCT, RECOMMENDATIONS, REVIEWS));
+
+    /**
+     * Returns the requested parts, or the default parts if none are requested.
+     *
+     * @throws InvalidInputException if a value is not the name of a part
+     */
+    public static Set<AggregatePart> parse(List<String> include) {
+        if (include == null || include.isEmpty()) {
+            return EnumSet.copyOf(DEFAULT_PARTS);
+        }
+
+        Set<AggregatePart> parts = EnumSet.noneOf(AggregatePart.class);
+        for (String value : include) {
+            try {
+                parts.add(valueOf(value.trim().toUpperCase(Locale.ROOT)));
+            } catch (IllegalArgumentException _) {
+                throw new InvalidInputException("Invalid include: " + value + ", must be one of product, recommendations, reviews, stats");
+            }
+        }
+        return parts;
+    }
+}
@@ -0,0 +1,164 @@
+package shop.microservices.composite.product.services;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.Status;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.client.discovery.ReactiveDiscoveryClient;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+/**
+ * Polls the health of the core services in the background and serves the last result, so that health
+ * probes against the composite service don't cause any calls to the core services.
+ * <p>
+ * Every instance registered in the discovery service is checked. A service is UP if at least one of its instances is.
+ * If no instances are registered, e.g. when running without Eureka, the load balanced health check is used instead.
+ * Results carry the time of the check, and are reported as UNKNOWN once they are older than app.health.maxAge.
+ */
+@Component
+public class CoreServiceHealthPoller {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CoreServiceHealthPoller.class);
+
+    private final ReactiveDiscoveryClient discoveryClient;
+    private final WebClient instanceClient;
+    private final Map<String, Supplier<Mono<Health>>> loadBalancedChecks;
+    private final Duration interval;
+    private final double jitter;
+    private final Duration timeout;
+    private final Duration maxAge;
+
+    private final Map<String, CheckedHealth> results = new ConcurrentHashMap<>();
+    private Disposable polling;
+
+    @Autowired
+    public CoreServiceHealthPoller(
+            ReactiveDiscoveryClient discoveryClient,
+            ProductCompositeIntegration integration,
+            @Value("${app.health.interval:10s}") Duration interval,
+            @Value("${app.health.jitter:0.2}") double jitter,
+            @Value("${app.health.timeout:2s}") Duration timeout,
+            @Value("${app.health.maxAge:60s}") Duration maxAge
+    ) {
+        this.discoveryClient = discoveryClient;
+        this.instanceClient = WebClient.builder().build();
+        this.interval = interval;
+        this.jitter = jitter;
+        this.timeout = timeout;
+        this.maxAge = maxAge;
+
+        this.loadBalancedChecks = new LinkedHashMap<>();
+        loadBalancedChecks.put("product", integration::getProductHealth);
+        loadBalancedChecks.put("recommendation", integration::getRecommendationHealth);
+        loadBalancedChecks.put("review", integration::getReviewHealth);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        LOG.info("Will poll the health of the core services every {} with {}% jitter", interval, Math.round(jitter * 100));
+
+        polling = pollAll()
+                .then(Mono.defer(() -> Mono.delay(nextDelay())))
+                .repeat()
+                .subscribe();
+    }
+
+    @PreDestroy
+    void stop() {
+        if (polling != null) {
+            polling.dispose();
+        }
+    }
+
+    /**
+     * Returns the last known health of the service, without calling it.
+     */
+    public Mono<Health> getHealth(String service) {
+        return Mono.fromSupplier(() -> {
+            CheckedHealth result = results.get(service);
+            if (result == null) {
+                return Health.unknown().withDetail("reason", "Not checked yet").build();
+            }
+
+            boolean stale = !Instant.now().isBefore(result.checkedAt().plus(maxAge));
+            Health.Builder builder = stale ? Health.unknown() : Health.status(result.health().getStatus());
+            return builder
+                    .withDetails(result.health().getDetails())
+                    .withDetail("checkedAt", result.checkedAt().toString())
+                    .withDetail("stale", stale)
+                    .build();
+        });
+    }
+
+    /**
+     * Checks all core services and updates the cached results.
+     */
+    public Mono<Void> pollAll() {
+        return Flux.fromIterable(loadBalancedChecks.keySet())
+                .flatMap(service -> checkService(service)
+                        .doOnNext(health -> results.put(service, new CheckedHealth(health, Instant.now()))))
+                .then();
+    }
+
+    private Mono<Health> checkService(String service) {
+        return discoveryClient.getInstances(service)
+                .collectList()
+                .onErrorReturn(List.of())
+                .flatMap(instances -> instances.isEmpty() ? checkLoadBalanced(service) : checkInstances(instances))
+                .onErrorResume(ex -> Mono.just(Health.down(ex).build()));
+    }
+
+    private Mono<Health> checkLoadBalanced(String service) {
+        return Mono.defer(loadBalancedChecks.get(service))
+                .timeout(timeout);
+    }
+
+    private Mono<Health> checkInstances(List<ServiceInstance> instances) {
+        return Flux.fromIterable(instances)
+                .flatMap(instance -> checkInstance(instance).map(status -> Map.entry(instance.getHost() + ":" + instance.getPort(), status)))
+                .collectSortedList(Map.Entry.comparingByKey())
+                .map(statuses -> {
+                    boolean anyUp = statuses.stream().anyMatch(e -> Status.UP.equals(e.getValue()));
+                    Map<String, String> details = new LinkedHashMap<>();
+                    statuses.forEach(e -> details.put(e.getKey(), e.getValue().getCode()));
+                    return (anyUp ? Health.up() : Health.down()).withDetail("instances", details).build();
+                });
+    }
+
+    private Mono<Status> checkInstance(ServiceInstance instance) {
+        String url = instance.getUri() + "/actuator/health";
+        LOG.debug("Will call the Health API on URL: {}", url);
+
+        return instanceClient.get().uri(url).retrieve().toBodilessEntity()
+                .timeout(timeout)
+                .map(_ -> Status.UP)
+                .onErrorReturn(Status.DOWN);
+    }
+
+    private Duration nextDelay() {
+        double factor = 1 + jitter * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+        return Duration.ofMillis(Math.round(interval.toMillis() * factor));
+    }
+
+    private record CheckedHealth(Health health, Instant checkedAt) {
+    }
+}
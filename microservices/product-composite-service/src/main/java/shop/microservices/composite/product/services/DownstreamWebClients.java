@@ -0,0 +1,113 @@
+package shop.microservices.composite.product.services;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.netty.http.HttpProtocol;
+import reactor.netty.http.client.Http2AllocationStrategy;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.springframework.http.HttpHeaders.ACCEPT;
+
+/**
+ * Creates one load balanced WebClient per downstream service, each with its own connection pool.
+ * <p>
+ * The pools act as bulkheads, a slow service can only exhaust its own connections and pending-acquire queue.
+ * They are configured per service with the properties app.&lt;service&gt;-service.pool.*, and publish their
+ * active, idle and pending connections as "reactor.netty.connection.provider.*" metrics with the tag name=&lt;service&gt;.
+ * <p>
+ * With app.http2.enabled the clients talk cleartext HTTP/2 (h2c, prior knowledge) to the core services, which then
+ * must run with the h2c profile. Requests are multiplexed over at most app.http2.maxConnections connections per instance.
+ * <p>
+ * Unless app.smile.enabled is false, the clients ask for the binary Smile format, which is cheaper to decode than JSON,
+ * and accept JSON as a fallback, e.g. for the actuator endpoints.
+ */
+@Component
+public class DownstreamWebClients {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DownstreamWebClients.class);
+
+    private static final String SMILE_WITH_JSON_FALLBACK = "application/x-jackson-smile, application/json;q=0.9";
+
+    private final WebClient.Builder webClientBuilder;
+    private final Environment environment;
+    private final boolean http2Enabled;
+    private final int http2MaxConnections;
+    private final int http2MaxConcurrentStreams;
+    private final boolean smileEnabled;
+    private final List<ConnectionProvider> connectionProviders = new CopyOnWriteArrayList<>();
+
+    @Autowired
+    public DownstreamWebClients(
+            WebClient.Builder webClientBuilder,
+            Environment environment,
+            @Value("${app.http2.enabled:false}") boolean http2Enabled,
+            @Value("${app.http2.maxConnections:2}") int http2MaxConnections,
+            @Value("${app.http2.maxConcurrentStreams:100}") int http2MaxConcurrentStreams,
+            @Value("${app.smile.enabled:true}") boolean smileEnabled
+    ) {
+        this.webClientBuilder = webClientBuilder;
+        this.environment = environment;
+        this.http2Enabled = http2Enabled;
+        this.http2MaxConnections = http2MaxConnections;
+        this.http2MaxConcurrentStreams = http2MaxConcurrentStreams;
+        this.smileEnabled = smileEnabled;
+    }
+
+    public WebClient create(String service) {
+        String prefix = "app." + service + "-service.pool.";
+        int maxConnections = environment.getProperty(prefix + "maxConnections", Integer.class, 50);
+        int pendingAcquireMaxCount = environment.getProperty(prefix + "pendingAcquireMaxCount", Integer.class, 100);
+        Duration pendingAcquireTimeout = environment.getProperty(prefix + "pendingAcquireTimeout", Duration.class, Duration.ofSeconds(2));
+        Duration maxIdleTime = environment.getProperty(prefix + "maxIdleTime", Duration.class, Duration.ofSeconds(30));
+        Duration responseTimeout = environment.getProperty(prefix + "responseTimeout", Duration.class, Duration.ofSeconds(5));
+
+        LOG.info("Connection pool for {}: maxConnections: {}, pendingAcquireMaxCount: {}, maxIdleTime: {}, responseTimeout: {}",
+                service, maxConnections, pendingAcquireMaxCount, maxIdleTime, responseTimeout);
+
+        ConnectionProvider.Builder connectionProviderBuilder = ConnectionProvider.builder(service)
+                .maxConnections(maxConnections)
+                .pendingAcquireMaxCount(pendingAcquireMaxCount)
+                .pendingAcquireTimeout(pendingAcquireTimeout)
+                .maxIdleTime(maxIdleTime)
+                .evictInBackground(maxIdleTime)
+                .metrics(true);
+        if (http2Enabled) {
+            LOG.info("Using h2c for {} with at most {} connections and {} concurrent streams per connection",
+                    service, http2MaxConnections, http2MaxConcurrentStreams);
+            connectionProviderBuilder.allocationStrategy(Http2AllocationStrategy.builder()
+                    .maxConnections(http2MaxConnections)
+                    .maxConcurrentStreams(http2MaxConcurrentStreams)
+                    .build());
+        }
+        ConnectionProvider connectionProvider = connectionProviderBuilder.build();
+        connectionProviders.add(connectionProvider);
+
+        HttpClient httpClient = HttpClient.create(connectionProvider)
+                .protocol(http2Enabled ? HttpProtocol.H2C : HttpProtocol.HTTP11)
+                .responseTimeout(responseTimeout);
+
+        WebClient.Builder builder = webClientBuilder.clone()
+                .clientConnector(new ReactorClientHttpConnector(httpClient));
+        if (smileEnabled) {
+            builder.defaultHeader(ACCEPT, SMILE_WITH_JSON_FALLBACK);
+        }
+        return builder.build();
+    }
+
+    @PreDestroy
+    void dispose() {
+        connectionProviders.forEach(ConnectionProvider::dispose);
+    }
+}
@@ -0,0 +1,148 @@
+package shop.microservices.composite.product.services;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.amqp.support.AmqpHeaders;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cloud.stream.function.StreamBridge;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageDeliveryException;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.scheduler.Scheduler;
+import shop.api.event.Event;
+
+import java.time.Duration;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Publishes events with StreamBridge and, if app.publisher.confirms.enabled, completes when the broker has confirmed them.
+ * <p>
+ * Each message carries a CorrelationData header that the Rabbit binder completes on the publisher confirm, so no thread
+ * waits for the broker. At most app.publisher.maxOutstandingConfirms messages are waiting for their confirm at any time,
+ * further publishes are held back until a confirm frees up a slot.
+ */
+@Component
+public class EventPublisher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EventPublisher.class);
+
+    private final StreamBridge streamBridge;
+    private final Scheduler publishEventScheduler;
+    private final boolean confirmsEnabled;
+    private final int maxOutstandingConfirms;
+    private final Duration confirmTimeout;
+
+    private final AtomicInteger outstandingConfirms = new AtomicInteger();
+    private final Queue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+
+    @Autowired
+    public EventPublisher(
+            StreamBridge streamBridge,
+            @Qualifier("publishEventScheduler") Scheduler publishEventScheduler,
+            MeterRegistry meterRegistry,
+            @Value("${app.publisher.confirms.enabled:true}") boolean confirmsEnabled,
+            @Value("${app.publisher.maxOutstandingConfirms:256}") int maxOutstandingConfirms,
+            @Value("${app.publisher.confirmTimeout:10s}") Duration confirmTimeout
+    ) {
+        this.streamBridge = streamBridge;
+        this.publishEventScheduler = publishEventScheduler;
+        this.confirmsEnabled = confirmsEnabled;
+        this.maxOutstandingConfirms = maxOutstandingConfirms;
+        this.confirmTimeout = confirmTimeout;
+
+        Gauge.builder("composite.publish.outstanding", outstandingConfirms, AtomicInteger::get)
+                .description("Published messages waiting for a confirm from the broker")
+                .register(meterRegistry);
+        Gauge.builder("composite.publish.waiting", waiters, Queue::size)
+                .description("Publishes held back by the limit on outstanding confirms")
+                .register(meterRegistry);
+    }
+
+    @SuppressWarnings("rawtypes")
+    public Mono<Void> publish(String bindingName, Event event) {
+        if (!confirmsEnabled) {
+            return Mono.fromRunnable(() -> send(bindingName, event, null))
+                    .subscribeOn(publishEventScheduler).then();
+        }
+
+        return acquire().then(Mono.defer(() -> {
+            CorrelationData correlation = new CorrelationData(UUID.randomUUID().toString());
+            return Mono.fromRunnable(() -> send(bindingName, event, correlation))
+                    .subscribeOn(publishEventScheduler)
+                    .then(Mono.fromFuture(correlation.getFuture(), true))
+                    .timeout(confirmTimeout)
+                    .flatMap(confirm -> confirm.isAck()
+                            ? Mono.<Void>empty()
+                            : Mono.error(new MessageDeliveryException("Message " + correlation.getId() + " to " + bindingName + " was nacked: " + confirm.getReason())))
+                    .doFinally(_ -> release());
+        }));
+    }
+
+    @SuppressWarnings("rawtypes")
+    private void send(String bindingName, Event event, CorrelationData correlation) {
+        LOG.debug("Sending a {} message to {}", event.getEventType(), bindingName);
+        MessageBuilder<Event> builder = MessageBuilder.withPayload(event)
+                .setHeader("partitionKey", event.getKey());
+        if (correlation != null) {
+            builder.setHeader(AmqpHeaders.PUBLISH_CONFIRM_CORRELATION, correlation);
+        }
+        Message<Event> message = builder.build();
+
+        if (!streamBridge.send(bindingName, message)) {
+            throw new MessageDeliveryException(message, "Failed to send the message to " + bindingName);
+        }
+    }
+
+    private Mono<Void> acquire() {
+        return Mono.create(sink -> {
+            Waiter waiter = new Waiter(sink, new AtomicBoolean());
+            sink.onCancel(() -> {
+                if (waiter.done().compareAndSet(false, true)) {
+                    waiters.remove(waiter);
+                }
+            });
+            waiters.add(waiter);
+            drain();
+        });
+    }
+
+    private void release() {
+        outstandingConfirms.decrementAndGet();
+        drain();
+    }
+
+    // Hands out free slots to waiting publishes, a slot given to a cancelled publish is released again
+    private void drain() {
+        while (!waiters.isEmpty()) {
+            int outstanding = outstandingConfirms.get();
+            if (outstanding >= maxOutstandingConfirms) {
+                return;
+            }
+            if (!outstandingConfirms.compareAndSet(outstanding, outstanding + 1)) {
+                continue;
+            }
+
+            Waiter waiter = waiters.poll();
+            if (waiter != null && waiter.done().compareAndSet(false, true)) {
+                waiter.sink().success();
+            } else {
+                outstandingConfirms.decrementAndGet();
+            }
+        }
+    }
+
+    private record Waiter(MonoSink<Void> sink, AtomicBoolean done) {
+    }
+}
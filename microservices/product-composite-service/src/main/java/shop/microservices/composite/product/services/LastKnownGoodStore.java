@@ -0,0 +1,67 @@
+package shop.microservices.composite.product.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the last successful response per productId, to be served as a stale fallback while a core service is unavailable.
+ */
+public class LastKnownGoodStore<T> {
+
+    private final Cache<Integer, List<T>> store;
+
+    public LastKnownGoodStore(String name, long maxSize, Duration ttl, MeterRegistry meterRegistry) {
+        this.store = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build();
+
+        CaffeineCacheMetrics.monitor(meterRegistry, store, name);
+    }
+
+    public void put(int productId, List<T> values) {
+        store.put(productId, values);
+    }
+
+    /**
+     * Stores the values of each of the products, an empty list for a product without values, and returns them by productId.
+     */
+    public Map<Integer, List<T>> putAll(List<Integer> productIds, Map<Integer, ? extends Collection<T>> valuesByProductId) {
+        Map<Integer, List<T>> stored = new HashMap<>();
+        for (int productId : productIds) {
+            Collection<T> values = valuesByProductId.get(productId);
+            List<T> list = values == null ? List.of() : List.copyOf(values);
+            store.put(productId, list);
+            stored.put(productId, list);
+        }
+        return stored;
+    }
+
+    /**
+     * Returns the last known good values for the product, or an empty list if there are none, flagged as stale.
+     */
+    public Snapshot<List<T>> getStale(int productId) {
+        List<T> values = store.getIfPresent(productId);
+        return Snapshot.stale(values == null ? List.of() : values);
+    }
+
+    /**
+     * Returns the last known good values of each of the products by productId, flagged as stale.
+     */
+    public Snapshot<Map<Integer, List<T>>> getStale(List<Integer> productIds) {
+        Map<Integer, List<T>> values = new HashMap<>();
+        for (int productId : productIds) {
+            values.put(productId, getStale(productId).value());
+        }
+        return Snapshot.stale(values);
+    }
+}
@@ -0,0 +1,63 @@
+package shop.microservices.composite.product.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import shop.api.core.product.Product;
+import shop.api.core.recommendation.Recommendation;
+import shop.api.core.review.Review;
+import shop.api.event.Event;
+
+import java.util.function.Consumer;
+
+/**
+ * Listens to the events the composite itself publishes, to keep its cached product aggregates and its read model up to date.
+ */
+@Configuration
+public class MessageProcessorConfig {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MessageProcessorConfig.class);
+
+    private final ProductAggregateCache cache;
+    private final ProductReadModel readModel;
+
+    @Autowired
+    public MessageProcessorConfig(ProductAggregateCache cache, ProductReadModel readModel) {
+        this.cache = cache;
+        this.readModel = readModel;
+    }
+
+    @Bean
+    public Consumer<Event<Integer, Product>> productEventProcessor() {
+        return event -> {
+            invalidateCache(event);
+            readModel.applyProductEvent(event);
+        };
+    }
+
+    @Bean
+    public Consumer<Event<Integer, Recommendation>> recommendationEventProcessor() {
+        return event -> {
+            invalidateCache(event);
+            readModel.applyRecommendationEvent(event);
+        };
+    }
+
+    @Bean
+    public Consumer<Event<Integer, Review>> reviewEventProcessor() {
+        return event -> {
+            invalidateCache(event);
+            readModel.applyReviewEvent(event);
+        };
+    }
+
+    private void invalidateCache(Event<Integer, ?> event) {
+        LOG.debug("Got a {} event for product.id={}", event.getEventType(), event.getKey());
+
+        if (event.getKey() != null) {
+            cache.invalidate(event.getKey());
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package shop.microservices.composite.product.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import shop.api.composite.product.ProductAggregate;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * In-process cache of assembled product aggregates.
+ * <p>
+ * Entries are evicted by size and age, and invalidated as soon as a create or delete event
+ * for the product, its recommendations or its reviews is seen on the message bus. The composite sees its events about
+ * when the core services do, so a read in between can cache the aggregate as it was before the write. The entry is
+ * therefore invalidated a second time app.cache.reinvalidateDelay later, once the core services have applied the write.
+ * Hit, miss and eviction counts are published as "cache.*" metrics with the tag cache=productAggregates.
+ */
+@Component
+public class ProductAggregateCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ProductAggregateCache.class);
+
+    private static final String CACHE_NAME = "productAggregates";
+
+    private final boolean enabled;
+    private final Cache<Integer, ProductAggregate> cache;
+    private final Counter invalidationCounter;
+    private final Duration reinvalidateDelay;
+
+    // A load records the sequence when it starts and its result is not cached if the product was invalidated since.
+    // Loads don't outlive the ttl, so the invalidation of a product is only kept for that long
+    private final AtomicLong sequence = new AtomicLong();
+    private final Cache<Integer, Long> invalidatedAt;
+
+    @Autowired
+    public ProductAggregateCache(
+            @Value("${app.cache.enabled:true}") boolean enabled,
+            @Value("${app.cache.maxSize:10000}") long maxSize,
+            @Value("${app.cache.ttl:5m}") Duration ttl,
+            @Value("${app.cache.reinvalidateDelay:2s}") Duration reinvalidateDelay,
+            MeterRegistry meterRegistry
+    ) {
+        this.enabled = enabled;
+        this.reinvalidateDelay = reinvalidateDelay;
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build();
+        this.invalidationCounter = Counter.builder("cache.invalidations")
+                .description("The number of entries invalidated by events")
+                .tag("cache", CACHE_NAME)
+                .register(meterRegistry);
+        this.invalidatedAt = Caffeine.newBuilder()
+                .expireAfterWrite(ttl)
+                .build();
+
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, CACHE_NAME);
+    }
+
+    /**
+     * Returns the cached aggregate for the product, or subscribes to the loader and caches its result.
+     */
+    public Mono<ProductAggregate> get(int productId, Supplier<Mono<ProductAggregate>> loader) {
+        if (!enabled) {
+            return Mono.defer(loader);
+        }
+
+        return Mono.defer(() -> {
+            ProductAggregate cached = cache.getIfPresent(productId);
+            if (cached != null) {
+                LOG.debug("Found product aggregate in cache for product.id={}", productId);
+                return Mono.just(cached);
+            }
+
+            long started = sequence.get();
+            return loader.get().doOnNext(aggregate -> {
+                // Don't keep a stale fallback around, the next request should try the core services again
+                boolean stale = aggregate.recommendationsStale() || aggregate.reviewsStale();
+                if (!stale && !invalidatedSince(productId, started)) {
+                    cache.put(productId, aggregate);
+                }
+            });
+        });
+    }
+
+    public Optional<ProductAggregate> getIfPresent(int productId) {
+        return enabled ? Optional.ofNullable(cache.getIfPresent(productId)) : Optional.empty();
+    }
+
+    public void invalidate(int productId) {
+        if (!enabled) {
+            return;
+        }
+
+        LOG.debug("Invalidate cached product aggregate for product.id={}", productId);
+        evict(productId);
+        invalidationCounter.increment();
+
+        if (reinvalidateDelay.isPositive()) {
+            Mono.delay(reinvalidateDelay).subscribe(_ -> evict(productId));
+        }
+    }
+
+    private void evict(int productId) {
+        invalidatedAt.put(productId, sequence.incrementAndGet());
+        cache.invalidate(productId);
+    }
+
+    private boolean invalidatedSince(int productId, long started) {
+        Long invalidated = invalidatedAt.getIfPresent(productId);
+        return invalidated != null && invalidated > started;
+    }
+}
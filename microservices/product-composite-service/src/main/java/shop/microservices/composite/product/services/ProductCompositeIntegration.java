@@ -1,36 +1,42 @@
 package shop.microservices.composite.product.services;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.actuate.health.Health;
-import org.springframework.cloud.stream.function.StreamBridge;
+import org.springframework.cloud.client.circuitbreaker.ReactiveCircuitBreaker;
+import org.springframework.cloud.client.circuitbreaker.ReactiveCircuitBreakerFactory;
 import org.springframework.http.HttpStatus;
-import org.springframework.messaging.Message;
-import org.springframework.messaging.support.MessageBuilder;
 import org.springframework.stereotype.Component;
 import org.springframework.web.reactive.function.client.WebClient;
 import org.springframework.web.reactive.function.client.WebClientResponseException;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
-import reactor.core.scheduler.Scheduler;
 import shop.api.core.product.Product;
+import shop.api.core.product.ProductPage;
 import shop.api.core.product.ProductService;
 import shop.api.core.recommendation.Recommendation;
 import shop.api.core.recommendation.RecommendationService;
 import shop.api.core.review.Review;
+import shop.api.core.review.ReviewPage;
 import shop.api.core.review.ReviewService;
+import shop.api.core.review.ReviewStats;
 import shop.api.event.Event;
 import shop.api.exceptions.InvalidInputException;
 import shop.api.exceptions.NotFoundException;
 import shop.util.http.HttpErrorInfo;
 
-import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.logging.Level.FINE;
-import static reactor.core.publisher.Flux.empty;
 import static shop.api.event.Event.Type.CREATE;
 import static shop.api.event.Event.Type.DELETE;
 
@@ -44,30 +50,59 @@ public class ProductCompositeIntegration implements ProductService, Recommendati
     private static final String RECOMMENDATION_SERVICE_URL = "http://recommendation";
     private static final String REVIEW_SERVICE_URL = "http://review";
 
-    private final Scheduler publishEventScheduler;
-    private final WebClient webClient;
-    private final ObjectMapper mapper;
-    private final StreamBridge streamBridge;
+    private final WebClient productClient;
+    private final WebClient recommendationClient;
+    private final WebClient reviewClient;
+    private final EventPublisher eventPublisher;
+    private final RequestHedger hedger;
+
+    private final RequestCoalescer<Integer, Product> productCalls;
+    private final RequestCoalescer<Integer, Snapshot<List<Recommendation>>> recommendationCalls;
+    private final RequestCoalescer<Integer, Snapshot<List<Review>>> reviewCalls;
+
+    private final ReactiveCircuitBreaker productCircuitBreaker;
+    private final ReactiveCircuitBreaker recommendationCircuitBreaker;
+    private final ReactiveCircuitBreaker reviewCircuitBreaker;
+
+    private final LastKnownGoodStore<Recommendation> lastKnownRecommendations;
+    private final LastKnownGoodStore<Review> lastKnownReviews;
+
+    private final int listingPageSize;
 
     @Autowired
     public ProductCompositeIntegration(
-            @Qualifier("publishEventScheduler") Scheduler publishEventScheduler,
-            WebClient.Builder webClientBuilder,
-            ObjectMapper mapper,
-            StreamBridge streamBridge
+            DownstreamWebClients webClients,
+            EventPublisher eventPublisher,
+            RequestHedger hedger,
+            ReactiveCircuitBreakerFactory<?, ?> circuitBreakerFactory,
+            MeterRegistry meterRegistry,
+            @Value("${app.lastKnownGood.maxSize:10000}") long lastKnownGoodMaxSize,
+            @Value("${app.lastKnownGood.ttl:1h}") Duration lastKnownGoodTtl,
+            @Value("${app.listing.pageSize:100}") int listingPageSize
     ) {
-        this.webClient = webClientBuilder.build();
-        this.publishEventScheduler = publishEventScheduler;
-        this.mapper = mapper;
-        this.streamBridge = streamBridge;
+        this.productClient = webClients.create("product");
+        this.recommendationClient = webClients.create("recommendation");
+        this.reviewClient = webClients.create("review");
+        this.eventPublisher = eventPublisher;
+        this.hedger = hedger;
+
+        this.productCalls = new RequestCoalescer<>("getProduct", meterRegistry);
+        this.recommendationCalls = new RequestCoalescer<>("getRecommendations", meterRegistry);
+        this.reviewCalls = new RequestCoalescer<>("getReviews", meterRegistry);
+
+        this.productCircuitBreaker = circuitBreakerFactory.create("product");
+        this.recommendationCircuitBreaker = circuitBreakerFactory.create("recommendation");
+        this.reviewCircuitBreaker = circuitBreakerFactory.create("review");
+
+        this.lastKnownRecommendations = new LastKnownGoodStore<>("lastKnownRecommendations", lastKnownGoodMaxSize, lastKnownGoodTtl, meterRegistry);
+        this.lastKnownReviews = new LastKnownGoodStore<>("lastKnownReviews", lastKnownGoodMaxSize, lastKnownGoodTtl, meterRegistry);
+
+        this.listingPageSize = listingPageSize;
     }
 
     @Override
     public Mono<Product> createProduct(Product body) {
-        return Mono.fromCallable(() -> {
-            sendMessage("products-out-0", new Event<>(CREATE, body.productId(), body));
-            return body;
-        }).subscribeOn(publishEventScheduler);
+        return eventPublisher.publish("products-out-0", new Event<>(CREATE, body.productId(), body)).thenReturn(body);
     }
 
     @Override
@@ -75,103 +110,271 @@ public class ProductCompositeIntegration implements ProductService, Recommendati
         String url = PRODUCT_SERVICE_URL + "/product/" + productId;
         LOG.debug("Will call the getProduct API on URL: {}", url);
 
-        return webClient.get()
-                .uri(url)
-                .retrieve()
-                .bodyToMono(Product.class)
-                .log(LOG.getName(), FINE)
-                .onErrorMap(WebClientResponseException.class, this::handleException);
+        return productCalls.execute(productId, () -> productCircuitBreaker.run(
+                hedger.hedge("getProduct", () -> productClient.get()
+                        .uri(url)
+                        .retrieve()
+                        .bodyToMono(Product.class)
+                        .log(LOG.getName(), FINE)
+                        .onErrorMap(WebClientResponseException.class, this::handleException)),
+                Mono::error));
     }
 
     @Override
     public Flux<Product> getAllProducts() {
-        String url = PRODUCT_SERVICE_URL + "/product";
+        // Page through the products one page at a time, the next page is only requested when the previous one is consumed
+        return getProducts(0, listingPageSize)
+                .expand(page -> page.nextCursor() == null ? Mono.empty() : getProducts(page.nextCursor(), listingPageSize))
+                .concatMapIterable(ProductPage::products);
+    }
+
+    @Override
+    public Mono<ProductPage> getProducts(int after, int limit) {
+        String url = PRODUCT_SERVICE_URL + "/product?after=" + after + "&limit=" + limit;
+        LOG.debug("Will call the getProducts API on URL: {}", url);
 
-        return webClient.get()
+        return productClient.get()
                 .uri(url)
                 .retrieve()
-                .bodyToFlux(Product.class)
+                .bodyToMono(ProductPage.class)
                 .log(LOG.getName(), FINE)
                 .onErrorMap(WebClientResponseException.class, this::handleException);
     }
 
     @Override
     public Mono<Void> deleteProduct(int productId) {
-        return Mono.fromRunnable(() -> sendMessage("products-out-0", new Event<>(DELETE, productId, null)))
-                .subscribeOn(publishEventScheduler).then();
+        return eventPublisher.publish("products-out-0", new Event<>(DELETE, productId, null));
     }
 
     @Override
     public Mono<Recommendation> createRecommendation(Recommendation body) {
-        return Mono.fromCallable(() -> {
-            sendMessage("recommendations-out-0", new Event<>(CREATE, body.productId(), body));
-            return body;
-        }).subscribeOn(publishEventScheduler);
+        return eventPublisher.publish("recommendations-out-0", new Event<>(CREATE, body.productId(), body)).thenReturn(body);
+    }
+
+    /**
+     * Publishes all recommendations of the product as one CREATE_BATCH event.
+     */
+    @Override
+    public Flux<Recommendation> createRecommendations(List<Recommendation> body) {
+        return eventPublisher.publish("recommendations-out-0", Event.createBatch(body.getFirst().productId(), body)).thenMany(Flux.fromIterable(body));
     }
 
     @Override
     public Flux<Recommendation> getRecommendations(int productId) {
+        return getRecommendationsSnapshot(productId).flatMapIterable(Snapshot::value);
+    }
+
+    /**
+     * Returns the recommendations of the product, or the last known good recommendations flagged as stale
+     * if the recommendation service fails, times out or its circuit breaker is open.
+     */
+    public Mono<Snapshot<List<Recommendation>>> getRecommendationsSnapshot(int productId) {
         String url = RECOMMENDATION_SERVICE_URL + "/recommendation?productId=" + productId;
 
         LOG.debug("Will call the getRecommendations API on URL: {}", url);
 
-        // Return an empty result if something goes wrong to make it possible for the composite service to return partial responses
-        return webClient.get()
+        return recommendationCalls.execute(productId, () -> recommendationCircuitBreaker.run(
+                hedger.hedge("getRecommendations", () -> recommendationClient.get()
+                                .uri(url)
+                                .retrieve()
+                                .bodyToFlux(Recommendation.class)
+                                .log(LOG.getName(), FINE)
+                                .collectList())
+                        .doOnNext(recommendations -> lastKnownRecommendations.put(productId, recommendations))
+                        .map(Snapshot::fresh),
+                ex -> {
+                    LOG.warn("getRecommendations failed for product.id={}, will use the last known good recommendations: {}", productId, ex.toString());
+                    return Mono.just(lastKnownRecommendations.getStale(productId));
+                }));
+    }
+
+    @Override
+    public Flux<Recommendation> getRecommendationsByProductIds(List<Integer> productIds) {
+        // Errors are passed on, callers that can do with partial responses use the snapshot variant instead
+        return recommendationCircuitBreaker.run(fetchRecommendationsByProductIds(productIds), Flux::error);
+    }
+
+    /**
+     * Returns the recommendations of the products by productId, or their last known good recommendations flagged as stale
+     * if the recommendation service fails, times out or its circuit breaker is open.
+     */
+    public Mono<Snapshot<Map<Integer, List<Recommendation>>>> getRecommendationsSnapshotByProductIds(List<Integer> productIds) {
+        return recommendationCircuitBreaker.run(
+                fetchRecommendationsByProductIds(productIds)
+                        .collectMultimap(Recommendation::productId)
+                        .map(byProductId -> Snapshot.fresh(lastKnownRecommendations.putAll(productIds, byProductId))),
+                ex -> {
+                    LOG.warn("getRecommendationsByProductIds failed for {} products, will use the last known good recommendations: {}", productIds.size(), ex.toString());
+                    return Mono.just(lastKnownRecommendations.getStale(productIds));
+                });
+    }
+
+    private Flux<Recommendation> fetchRecommendationsByProductIds(List<Integer> productIds) {
+        String url = RECOMMENDATION_SERVICE_URL + "/recommendation?productIds=" + joinProductIds(productIds);
+
+        LOG.debug("Will call the getRecommendationsByProductIds API on URL: {}", url);
+
+        return recommendationClient.get()
                 .uri(url)
                 .retrieve()
                 .bodyToFlux(Recommendation.class)
-                .log(LOG.getName(), FINE)
-                .onErrorResume(_ -> empty());
+                .log(LOG.getName(), FINE);
     }
 
     @Override
     public Mono<Void> deleteRecommendations(int productId) {
-        return Mono.fromRunnable(() -> sendMessage("recommendations-out-0", new Event<>(DELETE, productId, null)))
-                .subscribeOn(publishEventScheduler).then();
+        return eventPublisher.publish("recommendations-out-0", new Event<>(DELETE, productId, null));
     }
 
     @Override
     public Mono<Review> createReview(Review body) {
-        return Mono.fromCallable(() -> {
-            sendMessage("reviews-out-0", new Event<>(CREATE, body.productId(), body));
-            return body;
-        }).subscribeOn(publishEventScheduler);
+        return eventPublisher.publish("reviews-out-0", new Event<>(CREATE, body.productId(), body)).thenReturn(body);
+    }
+
+    /**
+     * Publishes all reviews of the product as one CREATE_BATCH event.
+     */
+    @Override
+    public Flux<Review> createReviews(List<Review> body) {
+        return eventPublisher.publish("reviews-out-0", Event.createBatch(body.getFirst().productId(), body)).thenMany(Flux.fromIterable(body));
     }
 
     @Override
     public Flux<Review> getReviews(int productId) {
+        return getReviewsSnapshot(productId).flatMapIterable(Snapshot::value);
+    }
+
+    /**
+     * Returns the reviews of the product, or the last known good reviews flagged as stale
+     * if the review service fails, times out or its circuit breaker is open.
+     */
+    public Mono<Snapshot<List<Review>>> getReviewsSnapshot(int productId) {
         String url = REVIEW_SERVICE_URL + "/review?productId=" + productId;
 
         LOG.debug("Will call the getReviews API on URL: {}", url);
 
-        // Return an empty result if something goes wrong to make it possible for the composite service to return partial responses
-        return webClient.get()
+        return reviewCalls.execute(productId, () -> reviewCircuitBreaker.run(
+                hedger.hedge("getReviews", () -> reviewClient.get()
+                                .uri(url)
+                                .retrieve()
+                                .bodyToFlux(Review.class)
+                                .log(LOG.getName(), FINE)
+                                .collectList())
+                        .doOnNext(reviews -> lastKnownReviews.put(productId, reviews))
+                        .map(Snapshot::fresh),
+                ex -> {
+                    LOG.warn("getReviews failed for product.id={}, will use the last known good reviews: {}", productId, ex.toString());
+                    return Mono.just(lastKnownReviews.getStale(productId));
+                }));
+    }
+
+    @Override
+    public Mono<ReviewPage> getReviewPage(int productId, String after, int limit) {
+        String url = REVIEW_SERVICE_URL + "/review?productId=" + productId + "&limit=" + limit;
+        if (after != null) {
+            url += "&after=" + URLEncoder.encode(after, UTF_8);
+        }
+
+        LOG.debug("Will call the getReviewPage API on URL: {}", url);
+
+        // The cursor is already encoded, so the URL is not expanded as a template
+        URI uri = URI.create(url);
+        return reviewCircuitBreaker.run(
+                reviewClient.get()
+                        .uri(uri)
+                        .retrieve()
+                        .bodyToMono(ReviewPage.class)
+                        .log(LOG.getName(), FINE)
+                        .onErrorMap(WebClientResponseException.class, this::handleException),
+                Mono::error);
+    }
+
+    @Override
+    public Flux<Review> getReviewsByProductIds(List<Integer> productIds) {
+        // Errors are passed on, callers that can do with partial responses use the snapshot variant instead
+        return reviewCircuitBreaker.run(fetchReviewsByProductIds(productIds), Flux::error);
+    }
+
+    /**
+     * Returns the reviews of the products by productId, or their last known good reviews flagged as stale
+     * if the review service fails, times out or its circuit breaker is open.
+     */
+    public Mono<Snapshot<Map<Integer, List<Review>>>> getReviewsSnapshotByProductIds(List<Integer> productIds) {
+        return reviewCircuitBreaker.run(
+                fetchReviewsByProductIds(productIds)
+                        .collectMultimap(Review::productId)
+                        .map(byProductId -> Snapshot.fresh(lastKnownReviews.putAll(productIds, byProductId))),
+                ex -> {
+                    LOG.warn("getReviewsByProductIds failed for {} products, will use the last known good reviews: {}", productIds.size(), ex.toString());
+                    return Mono.just(lastKnownReviews.getStale(productIds));
+                });
+    }
+
+    private Flux<Review> fetchReviewsByProductIds(List<Integer> productIds) {
+        String url = REVIEW_SERVICE_URL + "/review?productIds=" + joinProductIds(productIds);
+
+        LOG.debug("Will call the getReviewsByProductIds API on URL: {}", url);
+
+        return reviewClient.get()
                 .uri(url)
                 .retrieve()
                 .bodyToFlux(Review.class)
-                .log(LOG.getName(), FINE)
-                .onErrorResume(_ -> empty());
+                .log(LOG.getName(), FINE);
+    }
+
+    @Override
+    public Mono<ReviewStats> getReviewStats(int productId) {
+        String url = REVIEW_SERVICE_URL + "/review/stats?productId=" + productId;
+
+        LOG.debug("Will call the getReviewStats API on URL: {}", url);
+
+        // Leave the statistics out if something goes wrong, like the reviews of a partial response
+        return reviewCircuitBreaker.run(
+                reviewClient.get()
+                        .uri(url)
+                        .retrieve()
+                        .bodyToMono(ReviewStats.class)
+                        .log(LOG.getName(), FINE),
+                ex -> {
+                    LOG.warn("getReviewStats failed for product.id={}, will leave them out: {}", productId, ex.toString());
+                    return Mono.empty();
+                });
+    }
+
+    @Override
+    public Flux<ReviewStats> getReviewStatsByProductIds(List<Integer> productIds) {
+        String url = REVIEW_SERVICE_URL + "/review/stats?productIds=" + joinProductIds(productIds);
+
+        LOG.debug("Will call the getReviewStatsByProductIds API on URL: {}", url);
+
+        // Errors are passed on, so that statistics that can't be fetched are left out instead of shown as no reviews
+        return reviewCircuitBreaker.run(
+                reviewClient.get()
+                        .uri(url)
+                        .retrieve()
+                        .bodyToFlux(ReviewStats.class)
+                        .log(LOG.getName(), FINE),
+                Flux::error);
     }
 
     @Override
     public Mono<Void> deleteReviews(int productId) {
-        return Mono.fromRunnable(() -> sendMessage("reviews-out-0", new Event<>(DELETE, productId, null)))
-                .subscribeOn(publishEventScheduler).then();
+        return eventPublisher.publish("reviews-out-0", new Event<>(DELETE, productId, null));
     }
 
     public Mono<Health> getProductHealth() {
-        return getHealth(PRODUCT_SERVICE_URL);
+        return getHealth(productClient, PRODUCT_SERVICE_URL);
     }
 
     public Mono<Health> getRecommendationHealth() {
-        return getHealth(RECOMMENDATION_SERVICE_URL);
+        return getHealth(recommendationClient, RECOMMENDATION_SERVICE_URL);
     }
 
     public Mono<Health> getReviewHealth() {
-        return getHealth(REVIEW_SERVICE_URL);
+        return getHealth(reviewClient, REVIEW_SERVICE_URL);
     }
 
-    private Mono<Health> getHealth(String url) {
+    private Mono<Health> getHealth(WebClient webClient, String url) {
         url += "/actuator/health";
         LOG.debug("Will call the Health API on URL: {}", url);
         return webClient.get().uri(url).retrieve().bodyToMono(String.class)
@@ -180,13 +383,8 @@ public class ProductCompositeIntegration implements ProductService, Recommendati
                 .log(LOG.getName(), FINE);
     }
 
-    @SuppressWarnings("rawtypes")
-    private void sendMessage(String bindingName, Event event) {
-        LOG.debug("Sending a {} message to {}", event.getEventType(), bindingName);
-        Message<?> message = MessageBuilder.withPayload(event)
-                .setHeader("partitionKey", event.getKey())
-                .build();
-        streamBridge.send(bindingName, message);
+    private static String joinProductIds(List<Integer> productIds) {
+        return productIds.stream().map(String::valueOf).collect(Collectors.joining(","));
     }
 
     private Throwable handleException(Throwable ex) {
@@ -209,9 +407,11 @@ public class ProductCompositeIntegration implements ProductService, Recommendati
     }
 
     private String getErrorMessage(WebClientResponseException ex) {
+        // Decoded with the codec matching the content type of the error response, i.e. Smile or JSON
         try {
-            return mapper.readValue(ex.getResponseBodyAsString(), HttpErrorInfo.class).getMessage();
-        } catch (IOException ignored) {
+            HttpErrorInfo errorInfo = ex.getResponseBodyAs(HttpErrorInfo.class);
+            return errorInfo != null ? errorInfo.getMessage() : ex.getMessage();
+        } catch (RuntimeException ignored) {
             return ex.getMessage();
         }
     }
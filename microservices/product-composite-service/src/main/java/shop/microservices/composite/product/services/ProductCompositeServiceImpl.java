@@ -3,6 +3,7 @@ package shop.microservices.composite.product.services;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.web.bind.annotation.RestController;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
@@ -10,30 +11,59 @@ import shop.api.composite.product.*;
 import shop.api.core.product.Product;
 import shop.api.core.recommendation.Recommendation;
 import shop.api.core.review.Review;
+import shop.api.core.review.ReviewStats;
+import shop.api.exceptions.NotFoundException;
 import shop.util.http.ServiceUtil;
 
 import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.stream.Collectors;
 
 import static java.util.logging.Level.FINE;
+import static shop.microservices.composite.product.services.AggregatePart.PRODUCT;
+import static shop.microservices.composite.product.services.AggregatePart.RECOMMENDATIONS;
+import static shop.microservices.composite.product.services.AggregatePart.REVIEWS;
+import static shop.microservices.composite.product.services.AggregatePart.STATS;
 
 @RestController
 public class ProductCompositeServiceImpl implements ProductCompositeService {
 
     private static final Logger LOG = LoggerFactory.getLogger(ProductCompositeServiceImpl.class);
 
+    private static final Set<AggregatePart> ALL_PARTS = AggregatePart.DEFAULT_PARTS;
+
     private final ServiceUtil serviceUtil;
     private final ProductCompositeIntegration integration;
+    private final ProductAggregateCache cache;
+    private final ProductReadModel readModel;
+    private final int listingBatchSize;
+    private final int listingConcurrency;
+    private final int listingPrefetch;
 
     @Autowired
     public ProductCompositeServiceImpl(
             ServiceUtil serviceUtil,
-            ProductCompositeIntegration integration
+            ProductCompositeIntegration integration,
+            ProductAggregateCache cache,
+            ProductReadModel readModel,
+            @Value("${app.listing.batchSize:100}") int listingBatchSize,
+            @Value("${app.listing.concurrency:4}") int listingConcurrency,
+            @Value("${app.listing.prefetch:32}") int listingPrefetch
     ) {
         this.serviceUtil = serviceUtil;
         this.integration = integration;
+        this.cache = cache;
+        this.readModel = readModel;
+        this.listingBatchSize = listingBatchSize;
+        this.listingConcurrency = listingConcurrency;
+        this.listingPrefetch = listingPrefetch;
     }
 
     private static void logProductCreateError(String msg) {
@@ -47,21 +77,22 @@ public class ProductCompositeServiceImpl implements ProductCompositeService {
 
             LOG.info("Will create a new composite entity for product.id: {}", body.productId());
 
-            Product product = new Product(body.productId(), body.name(), body.weight(), null);
+            Product product = new Product(body.productId(), body.name(), body.weight() == null ? 0 : body.weight(), null);
             monoList.add(integration.createProduct(product));
 
-            if (body.recommendations() != null) {
-                body.recommendations().forEach(r -> {
-                    Recommendation recommendation = new Recommendation(body.productId(), r.recommendationId(), r.author(), r.rate(), r.content(), null);
-                    monoList.add(integration.createRecommendation(recommendation));
-                });
+            // One event per core service carries all of its entities, instead of one event per entity
+            if (body.recommendations() != null && !body.recommendations().isEmpty()) {
+                List<Recommendation> recommendations = body.recommendations().stream()
+                        .map(r -> new Recommendation(body.productId(), r.recommendationId(), r.author(), r.rate(), r.content(), null))
+                        .toList();
+                monoList.add(integration.createRecommendations(recommendations).collectList());
             }
 
-            if (body.reviews() != null) {
-                body.reviews().forEach(r -> {
-                    Review review = new Review(body.productId(), r.reviewId(), r.author(), r.subject(), r.content(), r.rating(), LocalDate.now(), null);
-                    monoList.add(integration.createReview(review));
-                });
+            if (body.reviews() != null && !body.reviews().isEmpty()) {
+                List<Review> reviews = body.reviews().stream()
+                        .map(r -> new Review(body.productId(), r.reviewId(), r.author(), r.subject(), r.content(), r.rating(), LocalDate.now(), null))
+                        .toList();
+                monoList.add(integration.createReviews(reviews).collectList());
             }
 
             LOG.debug("createCompositeProduct: composite entities created for productId: {}", body.productId());
@@ -78,36 +109,175 @@ public class ProductCompositeServiceImpl implements ProductCompositeService {
     }
 
     @Override
-    public Mono<ProductAggregate> getProduct(int productId) {
-        LOG.info("Will get composite product info for product.id={}", productId);
-        return Mono.zip(
-                        values -> {
-                            //noinspection unchecked
-                            return createProductAggregate(
-                                    (Product) values[0],
-                                    (List<Recommendation>) values[1],
-                                    (List<Review>) values[2],
-                                    serviceUtil.getServiceAddress());
-                        },
-                        integration.getProduct(productId),
-                        integration.getRecommendations(productId).collectList(),
-                        integration.getReviews(productId).collectList())
+    public Mono<ProductAggregate> getProduct(int productId, List<String> include) {
+        Set<AggregatePart> parts = AggregatePart.parse(include);
+        LOG.info("Will get composite product info for product.id={}, parts: {}", productId, parts);
+
+        // Once the read model is bootstrapped, it is a local lookup without calls to the core services
+        if (readModel.isReady()) {
+            return Mono.fromCallable(() -> readModel.get(productId)
+                    .map(entry -> trim(createProductAggregate(entry, parts.contains(STATS)), parts))
+                    .orElseThrow(() -> new NotFoundException("No product found for productId: " + productId)));
+        }
+
+        // The statistics are fetched next to the rest of the aggregate, so the cached aggregates never hold them
+        Set<AggregatePart> aggregateParts = EnumSet.copyOf(parts);
+        aggregateParts.remove(STATS);
+
+        // Only complete aggregates are cached, a partial one can still be cut from a cached complete aggregate
+        Mono<ProductAggregate> aggregate = aggregateParts.containsAll(ALL_PARTS)
+                ? cache.get(productId, () -> loadProductAggregate(productId, aggregateParts))
+                : Mono.defer(() -> cache.getIfPresent(productId)
+                        .map(cached -> Mono.just(trim(cached, aggregateParts)))
+                        .orElseGet(() -> loadProductAggregate(productId, aggregateParts)));
+
+        if (parts.contains(STATS)) {
+            // Statistics that can't be fetched are left out instead of failing the request
+            Mono<Optional<ReviewStatsSummary>> stats = integration.getReviewStats(productId)
+                    .map(s -> Optional.of(createReviewStatsSummary(s)))
+                    .defaultIfEmpty(Optional.empty());
+            aggregate = Mono.zip(aggregate, stats, (a, s) -> a.withReviewStats(s.orElse(null)));
+        }
+
+        return aggregate
                 .doOnError(ex -> LOG.warn("getCompositeProduct failed: {}", ex.toString()))
                 .log(LOG.getName(), FINE);
     }
 
-    @SuppressWarnings("unchecked")
+    private Mono<ProductAggregate> loadProductAggregate(int productId, Set<AggregatePart> parts) {
+        // Don't call the core services for parts that are not asked for
+        Mono<Snapshot<List<Recommendation>>> recommendations = parts.contains(RECOMMENDATIONS)
+                ? integration.getRecommendationsSnapshot(productId)
+                : Mono.just(Snapshot.fresh(null));
+        Mono<Snapshot<List<Review>>> reviews = parts.contains(REVIEWS)
+                ? integration.getReviewsSnapshot(productId)
+                : Mono.just(Snapshot.fresh(null));
+
+        if (parts.contains(PRODUCT)) {
+            return Mono.zip(integration.getProduct(productId), recommendations, reviews)
+                    .map(values -> trim(createProductAggregate(values.getT1(), values.getT2(), values.getT3(), serviceUtil.getServiceAddress()), parts));
+        }
+
+        // Parts found for the productId tell that the product exists. Only if they are all empty, the product service is
+        // asked, so that an unknown productId gets 404 instead of empty parts
+        return Mono.zip(recommendations, reviews)
+                .flatMap(children -> (isEmpty(children.getT1()) && isEmpty(children.getT2())
+                        ? integration.getProduct(productId)
+                        : Mono.just(new Product(productId, null, 0, null)))
+                        .map(product -> trim(createProductAggregate(product, children.getT1(), children.getT2(), serviceUtil.getServiceAddress()), parts)));
+    }
+
+    private static boolean isEmpty(Snapshot<? extends Collection<?>> snapshot) {
+        return snapshot.value() == null || snapshot.value().isEmpty();
+    }
+
     @Override
-    public Flux<ProductAggregate> getAllProducts() {
-        return integration.getAllProducts().flatMap(p -> Mono.zip(
-                values ->
-                        createProductAggregate(
+    public Flux<ProductAggregate> getAllProducts(List<String> include) {
+        Set<AggregatePart> parts = AggregatePart.parse(include);
+
+        if (readModel.isReady()) {
+            return readModel.getAll().map(entry -> trim(createProductAggregate(entry, parts.contains(STATS)), parts));
+        }
+
+        // Fetch recommendations and reviews for a chunk of products at a time instead of two calls per product.
+        // At most listingConcurrency chunks are in flight, and the aggregates are emitted in product order
+        return integration.getAllProducts()
+                .buffer(listingBatchSize)
+                .flatMapSequential(products -> createProductAggregates(products, parts), listingConcurrency, listingPrefetch);
+    }
+
+    private Flux<ProductAggregate> createProductAggregates(List<Product> products, Set<AggregatePart> parts) {
+        List<Integer> productIds = products.stream().map(Product::productId).toList();
+        LOG.debug("Will get {} for {} products", parts, productIds.size());
+
+        // Children that can't be fetched are served from the last known good copy and flagged as stale, like for a single product
+        Mono<Snapshot<Map<Integer, List<Recommendation>>>> recommendations = parts.contains(RECOMMENDATIONS)
+                ? integration.getRecommendationsSnapshotByProductIds(productIds)
+                : Mono.just(Snapshot.fresh(Map.of()));
+        Mono<Snapshot<Map<Integer, List<Review>>>> reviews = parts.contains(REVIEWS)
+                ? integration.getReviewsSnapshotByProductIds(productIds)
+                : Mono.just(Snapshot.fresh(Map.of()));
+        Mono<Optional<Map<Integer, ReviewStats>>> stats = parts.contains(STATS)
+                ? integration.getReviewStatsByProductIds(productIds).collectMap(ReviewStats::productId).map(Optional::of)
+                        .onErrorResume(ex -> {
+                            LOG.warn("getReviewStatsByProductIds failed for {} products, will leave them out: {}", productIds.size(), ex.toString());
+                            return Mono.just(Optional.empty());
+                        })
+                : Mono.just(Optional.empty());
+
+        return Mono.zip(recommendations, reviews, stats)
+                .flatMapIterable(children -> products.stream()
+                        .map(p -> trim(createProductAggregate(
                                 p,
-                                (List<Recommendation>) values[0],
-                                (List<Review>) values[1],
-                                serviceUtil.getServiceAddress()),
-                integration.getRecommendations(p.productId()).collectList(),
-                integration.getReviews(p.productId()).collectList()));
+                                childrenOf(children.getT1(), p.productId()),
+                                childrenOf(children.getT2(), p.productId()),
+                                serviceUtil.getServiceAddress()), parts))
+                        .map(a -> children.getT3()
+                                .map(s -> a.withReviewStats(createReviewStatsSummary(s.getOrDefault(a.productId(), ReviewStats.none(a.productId())))))
+                                .orElse(a))
+                        .toList());
+    }
+
+    private static ProductAggregate trim(ProductAggregate aggregate, Set<AggregatePart> parts) {
+        if (parts.containsAll(ALL_PARTS)) {
+            return aggregate;
+        }
+
+        boolean product = parts.contains(PRODUCT);
+        return new ProductAggregate(
+                aggregate.productId(),
+                product ? aggregate.name() : null,
+                product ? aggregate.weight() : null,
+                parts.contains(RECOMMENDATIONS) ? aggregate.recommendations() : null,
+                parts.contains(REVIEWS) ? aggregate.reviews() : null,
+                parts.contains(STATS) ? aggregate.reviewStats() : null,
+                aggregate.serviceAddresses(),
+                aggregate.recommendationsStale(),
+                aggregate.reviewsStale());
+    }
+
+    private static <T> Snapshot<List<T>> childrenOf(Snapshot<Map<Integer, List<T>>> childrenByProductId, int productId) {
+        return new Snapshot<>(childrenByProductId.value().getOrDefault(productId, List.of()), childrenByProductId.stale());
+    }
+
+    private ProductAggregate createProductAggregate(ProductReadModel.Entry entry, boolean withStats) {
+        ProductAggregate aggregate = createProductAggregate(
+                entry.product(),
+                List.copyOf(entry.recommendations().values()),
+                List.copyOf(entry.reviews().values()),
+                serviceUtil.getServiceAddress());
+        // The read model holds all reviews of the product, so the statistics are computed from them
+        return withStats ? aggregate.withReviewStats(createReviewStatsSummary(entry.reviews().values())) : aggregate;
+    }
+
+    private static ReviewStatsSummary createReviewStatsSummary(ReviewStats stats) {
+        return new ReviewStatsSummary(stats.count(), stats.averageRating(), stats.ratingHistogram(), stats.latestReviewDate());
+    }
+
+    private static ReviewStatsSummary createReviewStatsSummary(Collection<Review> reviews) {
+        Map<Integer, Integer> histogram = new TreeMap<>(Map.of(1, 0, 2, 0, 3, 0, 4, 0, 5, 0));
+        int ratingSum = 0;
+        LocalDate latestDate = null;
+        for (Review review : reviews) {
+            histogram.computeIfPresent(review.rating(), (_, count) -> count + 1);
+            ratingSum += review.rating();
+            if (review.date() != null && (latestDate == null || review.date().isAfter(latestDate))) {
+                latestDate = review.date();
+            }
+        }
+        Double averageRating = reviews.isEmpty() ? null : (double) ratingSum / reviews.size();
+        return new ReviewStatsSummary(reviews.size(), averageRating, histogram, latestDate);
+    }
+
+    private ProductAggregate createProductAggregate(
+            Product product,
+            Snapshot<List<Recommendation>> recommendations,
+            Snapshot<List<Review>> reviews,
+            String serviceAddress) {
+        ProductAggregate aggregate = createProductAggregate(product, recommendations.value(), reviews.value(), serviceAddress);
+        return new ProductAggregate(aggregate.productId(), aggregate.name(), aggregate.weight(),
+                aggregate.recommendations(), aggregate.reviews(), aggregate.serviceAddresses(),
+                recommendations.stale(), reviews.stale());
     }
 
     private ProductAggregate createProductAggregate(
@@ -174,4 +344,14 @@ public class ProductCompositeServiceImpl implements ProductCompositeService {
         return integration.getReviews(productId)
                 .map(r -> new ReviewSummary(r.reviewId(), r.author(), r.subject(), r.content(), r.rating()));
     }
+
+    @Override
+    public Mono<ReviewSummaryPage> getReviewPage(int productId, String after, int limit) {
+        return integration.getReviewPage(productId, after, limit)
+                .map(page -> new ReviewSummaryPage(
+                        page.reviews().stream()
+                                .map(r -> new ReviewSummary(r.reviewId(), r.author(), r.subject(), r.content(), r.rating()))
+                                .toList(),
+                        page.nextCursor()));
+    }
 }
@@ -0,0 +1,291 @@
+package shop.microservices.composite.product.services;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
+import shop.api.core.product.Product;
+import shop.api.core.recommendation.Recommendation;
+import shop.api.core.review.Review;
+import shop.api.event.Event;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+import static shop.microservices.composite.product.services.AggregatePart.PRODUCT;
+import static shop.microservices.composite.product.services.AggregatePart.RECOMMENDATIONS;
+import static shop.microservices.composite.product.services.AggregatePart.REVIEWS;
+
+/**
+ * Local read model of the products with their recommendations and reviews, kept up to date by the events on the
+ * products, recommendations and reviews destinations, so that reads don't need to call the core services.
+ * <p>
+ * On startup the read model is bootstrapped from the core services: the products are paged through and the
+ * recommendations and reviews are fetched for app.listing.batchSize products at a time. Events are applied while the
+ * bootstrap runs, and win over what the bootstrap reads, so that e.g. a product deleted meanwhile is not brought back,
+ * while recommendations and reviews created meanwhile are added to the ones read.
+ * Until the bootstrap is done, {@link #isReady()} returns false and reads should go to the core services.
+ * <p>
+ * The events are the commands sent to the core services, not their confirmed writes, so a create that a core service
+ * rejects is still applied, and events can be missed. The read model is therefore rebuilt from the core services every
+ * app.readModel.reconcileInterval the same way: what the core services return replaces the read model, except for the
+ * parts that events changed during the rebuild, and products that the core services no longer return are removed.
+ * <p>
+ * The entries are kept in memory ordered by productId, their number is reported by the readModel.products gauge.
+ * The read model is off unless app.readModel.enabled is set.
+ */
+@Component
+public class ProductReadModel {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ProductReadModel.class);
+
+    /**
+     * A product, which is null until its create event or the bootstrap is seen, with its recommendations and reviews by id.
+     */
+    public record Entry(Product product, Map<Integer, Recommendation> recommendations, Map<Integer, Review> reviews) {
+    }
+
+    /**
+     * What events changed in a product while a rebuild is running: the parts they set or deleted, and the ids of the
+     * recommendations and reviews they created.
+     */
+    private record Changes(Set<AggregatePart> overridden, Set<Integer> recommendationIds, Set<Integer> reviewIds) {
+
+        static final Changes NONE = new Changes(Set.of(), Set.of(), Set.of());
+
+        static Changes create() {
+            return new Changes(ConcurrentHashMap.newKeySet(), ConcurrentHashMap.newKeySet(), ConcurrentHashMap.newKeySet());
+        }
+    }
+
+    private static final Entry EMPTY = new Entry(null, Map.of(), Map.of());
+
+    private final ProductCompositeIntegration integration;
+    private final boolean enabled;
+    private final int batchSize;
+    private final Duration reconcileInterval;
+    private final ConcurrentNavigableMap<Integer, Entry> entries = new ConcurrentSkipListMap<>();
+
+    private final Map<Integer, Changes> changedDuringRebuild = new ConcurrentHashMap<>();
+    // The products returned by the core services in the current rebuild
+    private final Set<Integer> loadedDuringRebuild = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean rebuilding;
+    private volatile boolean ready;
+
+    @Autowired
+    public ProductReadModel(
+            ProductCompositeIntegration integration,
+            MeterRegistry meterRegistry,
+            @Value("${app.readModel.enabled:false}") boolean enabled,
+            @Value("${app.listing.batchSize:100}") int batchSize,
+            @Value("${app.readModel.reconcileInterval:10m}") Duration reconcileInterval
+    ) {
+        this.integration = integration;
+        this.enabled = enabled;
+        this.batchSize = batchSize;
+        this.reconcileInterval = reconcileInterval;
+
+        Gauge.builder("readModel.products", entries, Map::size)
+                .description("Products in the local read model")
+                .register(meterRegistry);
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    public Optional<Entry> get(int productId) {
+        return Optional.ofNullable(entries.get(productId)).filter(entry -> entry.product() != null);
+    }
+
+    /**
+     * Returns the products in productId order.
+     */
+    public Flux<Entry> getAll() {
+        return Flux.fromIterable(entries.values()).filter(entry -> entry.product() != null);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void bootstrapOnStartup() {
+        if (!enabled) {
+            return;
+        }
+
+        if (reconcileInterval.isZero() || reconcileInterval.isNegative()) {
+            rebuild().subscribe();
+        } else {
+            rebuild()
+                    .thenMany(Flux.interval(reconcileInterval).onBackpressureDrop().concatMap(_ -> rebuild()))
+                    .subscribe();
+        }
+    }
+
+    /**
+     * Reads all products, recommendations and reviews from the core services into the read model, retrying until it
+     * succeeds, and removes the products that the core services no longer return.
+     */
+    public Mono<Void> rebuild() {
+        return Mono.fromRunnable(() -> {
+                    changedDuringRebuild.clear();
+                    rebuilding = true;
+                })
+                .then(Mono.defer(() -> {
+                            LOG.info("Will rebuild the read model from the core services");
+                            loadedDuringRebuild.clear();
+
+                            return integration.getAllProducts()
+                                    .buffer(batchSize)
+                                    .concatMap(this::load)
+                                    .count();
+                        })
+                        .retryWhen(Retry.backoff(Long.MAX_VALUE, Duration.ofSeconds(1)).maxBackoff(Duration.ofMinutes(1))
+                                .doBeforeRetry(signal -> LOG.warn("Failed to rebuild the read model, will retry: {}", signal.failure().toString()))))
+                .doOnNext(products -> {
+                    int removed = removeNotLoaded();
+                    rebuilding = false;
+                    ready = true;
+                    LOG.info("Rebuilt the read model with {} products, removed {} products", products, removed);
+                })
+                .then();
+    }
+
+    // A failing batch call fails the rebuild, which is then retried, so that it never becomes ready with missing children
+    private Flux<Product> load(List<Product> products) {
+        List<Integer> productIds = products.stream().map(Product::productId).toList();
+
+        return Mono.zip(
+                        integration.getRecommendationsByProductIds(productIds).collectMultimap(Recommendation::productId),
+                        integration.getReviewsByProductIds(productIds).collectMultimap(Review::productId))
+                .flatMapIterable(children -> {
+                    for (Product product : products) {
+                        int productId = product.productId();
+                        Entry loaded = new Entry(
+                                product,
+                                withChildren(Map.of(), children.getT1().getOrDefault(productId, List.of()), Recommendation::recommendationId),
+                                withChildren(Map.of(), children.getT2().getOrDefault(productId, List.of()), Review::reviewId));
+                        loadedDuringRebuild.add(productId);
+                        entries.compute(productId, (_, current) -> orNull(merge(current == null ? EMPTY : current, loaded, changesOf(productId))));
+                    }
+                    return products;
+                });
+    }
+
+    // The parts set or deleted by events are kept, the children created by events are added to the loaded ones
+    private static Entry merge(Entry current, Entry loaded, Changes changes) {
+        return new Entry(
+                changes.overridden().contains(PRODUCT) ? current.product() : loaded.product(),
+                changes.overridden().contains(RECOMMENDATIONS)
+                        ? current.recommendations()
+                        : merged(loaded.recommendations(), current.recommendations(), changes.recommendationIds()),
+                changes.overridden().contains(REVIEWS)
+                        ? current.reviews()
+                        : merged(loaded.reviews(), current.reviews(), changes.reviewIds()));
+    }
+
+    // Products that the core services didn't return are dropped, unless events changed them during the rebuild
+    private int removeNotLoaded() {
+        int removed = 0;
+        for (Integer productId : entries.keySet()) {
+            if (!loadedDuringRebuild.contains(productId)
+                    && entries.computeIfPresent(productId, (_, entry) -> changedDuringRebuild.containsKey(productId) ? entry : null) == null) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    private Changes changesOf(int productId) {
+        return changedDuringRebuild.getOrDefault(productId, Changes.NONE);
+    }
+
+    public void applyProductEvent(Event<Integer, Product> event) {
+        switch (event.getEventType()) {
+            case CREATE -> update(event.getKey(), changes -> changes.overridden().add(PRODUCT),
+                    entry -> new Entry(event.getData(), entry.recommendations(), entry.reviews()));
+            case DELETE -> update(event.getKey(), changes -> changes.overridden().add(PRODUCT),
+                    entry -> new Entry(null, entry.recommendations(), entry.reviews()));
+            default -> LOG.debug("Ignore {} event for product.id={} in the read model", event.getEventType(), event.getKey());
+        }
+    }
+
+    public void applyRecommendationEvent(Event<Integer, Recommendation> event) {
+        switch (event.getEventType()) {
+            case CREATE -> update(event.getKey(), changes -> changes.recommendationIds().add(event.getData().recommendationId()), entry ->
+                    new Entry(entry.product(), withChildren(entry.recommendations(), List.of(event.getData()), Recommendation::recommendationId), entry.reviews()));
+            case CREATE_BATCH -> update(event.getKey(), changes -> event.getBatch().forEach(r -> changes.recommendationIds().add(r.recommendationId())), entry ->
+                    new Entry(entry.product(), withChildren(entry.recommendations(), event.getBatch(), Recommendation::recommendationId), entry.reviews()));
+            case DELETE -> update(event.getKey(), changes -> changes.overridden().add(RECOMMENDATIONS),
+                    entry -> new Entry(entry.product(), Map.of(), entry.reviews()));
+            default -> LOG.debug("Ignore {} event for product.id={} in the read model", event.getEventType(), event.getKey());
+        }
+    }
+
+    public void applyReviewEvent(Event<Integer, Review> event) {
+        switch (event.getEventType()) {
+            case CREATE -> update(event.getKey(), changes -> changes.reviewIds().add(event.getData().reviewId()), entry ->
+                    new Entry(entry.product(), entry.recommendations(), withChildren(entry.reviews(), List.of(event.getData()), Review::reviewId)));
+            case CREATE_BATCH -> update(event.getKey(), changes -> event.getBatch().forEach(r -> changes.reviewIds().add(r.reviewId())), entry ->
+                    new Entry(entry.product(), entry.recommendations(), withChildren(entry.reviews(), event.getBatch(), Review::reviewId)));
+            case DELETE -> update(event.getKey(), changes -> changes.overridden().add(REVIEWS),
+                    entry -> new Entry(entry.product(), entry.recommendations(), Map.of()));
+            default -> LOG.debug("Ignore {} event for product.id={} in the read model", event.getEventType(), event.getKey());
+        }
+    }
+
+    // What an event changes is recorded before it is applied, so that a running rebuild doesn't overwrite it
+    private void update(Integer productId, Consumer<Changes> record, UnaryOperator<Entry> change) {
+        if (!enabled || productId == null) {
+            return;
+        }
+
+        if (rebuilding) {
+            record.accept(changedDuringRebuild.computeIfAbsent(productId, _ -> Changes.create()));
+        }
+        entries.compute(productId, (_, entry) -> orNull(change.apply(entry == null ? EMPTY : entry)));
+    }
+
+    // Drops entries with nothing left in them, e.g. once all parts of a product are deleted
+    private static Entry orNull(Entry entry) {
+        return entry.product() == null && entry.recommendations().isEmpty() && entry.reviews().isEmpty() ? null : entry;
+    }
+
+    // Children are kept ordered by id, a child that is created again replaces the old one
+    private static <T> Map<Integer, T> withChildren(Map<Integer, T> children, Collection<T> added, Function<T, Integer> idOf) {
+        Map<Integer, T> result = new TreeMap<>(children);
+        added.forEach(child -> result.put(idOf.apply(child), child));
+        return Collections.unmodifiableMap(result);
+    }
+
+    // Adds the current children with the given ids to the loaded ones
+    private static <T> Map<Integer, T> merged(Map<Integer, T> loaded, Map<Integer, T> current, Set<Integer> ids) {
+        Map<Integer, T> result = new TreeMap<>(loaded);
+        ids.forEach(id -> {
+            T child = current.get(id);
+            if (child != null) {
+                result.put(id, child);
+            }
+        });
+        return Collections.unmodifiableMap(result);
+    }
+}
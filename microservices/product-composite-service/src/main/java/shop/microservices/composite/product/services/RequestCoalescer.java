@@ -0,0 +1,65 @@
+package shop.microservices.composite.product.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Collapses concurrent calls for the same key into a single in-flight call.
+ * <p>
+ * The first subscriber for a key starts the call, subscribers arriving while it is still running
+ * share its result. The key is released as soon as the call completes, fails or is cancelled by
+ * all of its subscribers, so the next caller will trigger a new call.
+ * The number of collapsed calls is published as the metric "composite.requests.collapsed" with the tag call=&lt;name&gt;.
+ */
+public class RequestCoalescer<K, V> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RequestCoalescer.class);
+
+    private final String name;
+    private final Map<K, Mono<V>> inFlight = new ConcurrentHashMap<>();
+    private final Counter collapsedCounter;
+
+    public RequestCoalescer(String name, MeterRegistry meterRegistry) {
+        this.name = name;
+        this.collapsedCounter = Counter.builder("composite.requests.collapsed")
+                .description("The number of calls served by an already in-flight call for the same key")
+                .tag("call", name)
+                .register(meterRegistry);
+    }
+
+    public Mono<V> execute(K key, Supplier<Mono<V>> call) {
+        return Mono.defer(() -> {
+            Mono<V> existing = inFlight.get(key);
+            if (existing == null) {
+                Mono<V> flight = newFlight(key, call);
+                existing = inFlight.putIfAbsent(key, flight);
+                if (existing == null) {
+                    return flight;
+                }
+            }
+
+            LOG.debug("Joining in-flight {} call for key {}", name, key);
+            collapsedCounter.increment();
+            return existing;
+        });
+    }
+
+    private Mono<V> newFlight(K key, Supplier<Mono<V>> call) {
+        AtomicReference<Mono<V>> self = new AtomicReference<>();
+
+        // share() cancels the upstream call once the last subscriber cancels, which also ends up in doFinally
+        Mono<V> flight = Mono.defer(call)
+                .doFinally(_ -> inFlight.remove(key, self.get()))
+                .share();
+        self.set(flight);
+        return flight;
+    }
+}
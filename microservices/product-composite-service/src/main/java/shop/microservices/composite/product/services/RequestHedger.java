@@ -0,0 +1,144 @@
+package shop.microservices.composite.product.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Sends a second, hedged, request when a downstream call has not answered within the configured latency percentile
+ * and returns whichever of the two answers first.
+ * <p>
+ * Since the calls go through the round-robin load balancer, the hedged request normally ends up on another instance.
+ * Hedged requests are paid for from a token bucket that is refilled by a fraction of the primary requests,
+ * so hedging never adds more than the configured budget of extra load.
+ * Fired and won hedges are counted in "composite.hedge.fired" and "composite.hedge.won" with the tag call=&lt;name&gt;.
+ */
+@Component
+public class RequestHedger {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RequestHedger.class);
+
+    // Token bucket counted in thousandths of a hedged request
+    private static final long TOKEN = 1000;
+    private static final long MAX_TOKENS = 10 * TOKEN;
+
+    private final boolean enabled;
+    private final double percentile;
+    private final Duration minDelay;
+    private final long tokensPerRequest;
+    private final MeterRegistry meterRegistry;
+
+    private final AtomicLong tokens = new AtomicLong();
+    private final Map<String, Meters> meters = new ConcurrentHashMap<>();
+
+    @Autowired
+    public RequestHedger(
+            @Value("${app.hedging.enabled:false}") boolean enabled,
+            @Value("${app.hedging.percentile:0.95}") double percentile,
+            @Value("${app.hedging.minDelay:20ms}") Duration minDelay,
+            @Value("${app.hedging.budget:0.1}") double budget,
+            MeterRegistry meterRegistry
+    ) {
+        this.enabled = enabled;
+        this.percentile = percentile;
+        this.minDelay = minDelay;
+        this.tokensPerRequest = Math.round(budget * TOKEN);
+        this.meterRegistry = meterRegistry;
+
+        LOG.info("Hedging of downstream requests is {}, percentile: {}, budget: {}", enabled ? "enabled" : "disabled", percentile, budget);
+    }
+
+    public <T> Mono<T> hedge(String call, Supplier<Mono<T>> request) {
+        if (!enabled) {
+            return Mono.defer(request);
+        }
+
+        return Mono.defer(() -> {
+            Meters callMeters = meters.computeIfAbsent(call, this::createMeters);
+            depositTokens();
+
+            // A primary request cancelled since the hedged one won is recorded with the time it took so far, as a lower
+            // bound of its latency. Leaving it out would pull the percentile down and make hedging fire ever more often
+            long start = System.nanoTime();
+            Mono<T> primary = Mono.defer(request)
+                    .doOnSuccess(_ -> callMeters.latency.record(System.nanoTime() - start, NANOSECONDS))
+                    .doOnCancel(() -> callMeters.latency.record(System.nanoTime() - start, NANOSECONDS));
+
+            Duration delay = hedgeDelay(callMeters.latency);
+            Mono<T> hedged = Mono.delay(delay)
+                    .filter(_ -> tryAcquireToken())
+                    .flatMap(_ -> {
+                        LOG.debug("No response from {} within {} ms, sending a hedged request", call, delay.toMillis());
+                        callMeters.fired.increment();
+                        return Mono.defer(request).doOnSuccess(_ -> callMeters.won.increment());
+                    })
+                    // Let the primary request decide the outcome if the hedged request fails or is not sent
+                    .onErrorResume(_ -> Mono.never())
+                    .switchIfEmpty(Mono.never());
+
+            return Mono.firstWithSignal(primary, hedged);
+        });
+    }
+
+    private Duration hedgeDelay(Timer latency) {
+        for (ValueAtPercentile value : latency.takeSnapshot().percentileValues()) {
+            if (value.percentile() == percentile) {
+                long millis = (long) value.value(MILLISECONDS);
+                return millis > minDelay.toMillis() ? Duration.ofMillis(millis) : minDelay;
+            }
+        }
+        return minDelay;
+    }
+
+    private void depositTokens() {
+        tokens.accumulateAndGet(tokensPerRequest, (current, deposit) -> Math.min(current + deposit, MAX_TOKENS));
+    }
+
+    private boolean tryAcquireToken() {
+        long current;
+        do {
+            current = tokens.get();
+            if (current < TOKEN) {
+                LOG.debug("Hedging budget exhausted, will not send a hedged request");
+                return false;
+            }
+        } while (!tokens.compareAndSet(current, current - TOKEN));
+        return true;
+    }
+
+    private Meters createMeters(String call) {
+        return new Meters(
+                Timer.builder("composite.downstream.latency")
+                        .description("Latency of the primary downstream requests, used to decide when to hedge")
+                        .tag("call", call)
+                        .publishPercentiles(percentile)
+                        .register(meterRegistry),
+                Counter.builder("composite.hedge.fired")
+                        .description("The number of hedged requests sent")
+                        .tag("call", call)
+                        .register(meterRegistry),
+                Counter.builder("composite.hedge.won")
+                        .description("The number of hedged requests that answered before the primary request")
+                        .tag("call", call)
+                        .register(meterRegistry));
+    }
+
+    private record Meters(Timer latency, Counter fired, Counter won) {
+    }
+}
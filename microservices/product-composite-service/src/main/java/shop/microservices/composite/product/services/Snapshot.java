@@ -0,0 +1,15 @@
+package shop.microservices.composite.product.services;
+
+/**
+ * A value read from a core service, flagged as stale when it was served from the last known good copy.
+ */
+public record Snapshot<T>(T value, boolean stale) {
+
+    public static <T> Snapshot<T> fresh(T value) {
+        return new Snapshot<>(value, false);
+    }
+
+    public static <T> Snapshot<T> stale(T value) {
+        return new Snapshot<>(value, true);
+    }
+}
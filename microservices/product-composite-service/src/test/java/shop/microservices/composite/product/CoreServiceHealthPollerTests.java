@@ -0,0 +1,87 @@
+package shop.microservices.composite.product;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.Status;
+import org.springframework.cloud.client.DefaultServiceInstance;
+import org.springframework.cloud.client.discovery.ReactiveDiscoveryClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import shop.microservices.composite.product.services.CoreServiceHealthPoller;
+import shop.microservices.composite.product.services.ProductCompositeIntegration;
+
+import java.time.Duration;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.mockito.Mockito.*;
+
+class CoreServiceHealthPollerTests {
+
+    private final ReactiveDiscoveryClient discoveryClient = mock(ReactiveDiscoveryClient.class);
+    private final ProductCompositeIntegration integration = mock(ProductCompositeIntegration.class);
+
+    @BeforeEach
+    void setUp() {
+        when(discoveryClient.getInstances(anyString())).thenReturn(Flux.empty());
+        when(integration.getProductHealth()).thenReturn(Mono.just(Health.up().build()));
+        when(integration.getRecommendationHealth()).thenReturn(Mono.just(Health.up().build()));
+        when(integration.getReviewHealth()).thenReturn(Mono.error(new RuntimeException("review is down")));
+    }
+
+    @Test
+    void healthIsUnknownUntilChecked() {
+        CoreServiceHealthPoller poller = createPoller(Duration.ofMinutes(1));
+
+        assertEquals(Status.UNKNOWN, poller.getHealth("product").block().getStatus());
+        verify(integration, never()).getProductHealth();
+    }
+
+    @Test
+    void healthIsServedFromLastPoll() {
+        CoreServiceHealthPoller poller = createPoller(Duration.ofMinutes(1));
+        poller.pollAll().block();
+
+        Health product = poller.getHealth("product").block();
+        assertEquals(Status.UP, product.getStatus());
+        assertNotNull(product.getDetails().get("checkedAt"));
+        assertEquals(false, product.getDetails().get("stale"));
+        assertEquals(Status.DOWN, poller.getHealth("review").block().getStatus());
+
+        // Asking for the health again does not call the core services
+        poller.getHealth("product").block();
+        verify(integration, times(1)).getProductHealth();
+    }
+
+    @Test
+    void staleHealthIsReportedAsUnknown() {
+        CoreServiceHealthPoller poller = createPoller(Duration.ZERO);
+        poller.pollAll().block();
+
+        Health product = poller.getHealth("product").block();
+        assertEquals(Status.UNKNOWN, product.getStatus());
+        assertEquals(true, product.getDetails().get("stale"));
+    }
+
+    @Test
+    void registeredInstancesAreCheckedOneByOne() {
+        // Nothing listens on port 1, so the instance is reported as down
+        when(discoveryClient.getInstances("product")).thenReturn(Flux.just(
+                new DefaultServiceInstance("product-1", "product", "localhost", 1, false)));
+
+        CoreServiceHealthPoller poller = createPoller(Duration.ofMinutes(1));
+        poller.pollAll().block();
+
+        Health product = poller.getHealth("product").block();
+        assertEquals(Status.DOWN, product.getStatus());
+        assertEquals(Map.of("localhost:1", "DOWN"), product.getDetails().get("instances"));
+        verify(integration, never()).getProductHealth();
+    }
+
+    private CoreServiceHealthPoller createPoller(Duration maxAge) {
+        return new CoreServiceHealthPoller(discoveryClient, integration,
+                Duration.ofSeconds(10), 0.2, Duration.ofSeconds(2), maxAge);
+    }
+}
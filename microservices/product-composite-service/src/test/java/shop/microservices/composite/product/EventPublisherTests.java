@@ -0,0 +1,132 @@
+package shop.microservices.composite.product;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.amqp.support.AmqpHeaders;
+import org.springframework.cloud.stream.function.StreamBridge;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageDeliveryException;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import shop.api.event.Event;
+import shop.microservices.composite.product.services.EventPublisher;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static shop.api.event.Event.Type.DELETE;
+
+class EventPublisherTests {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+    private final StreamBridge streamBridge = mock(StreamBridge.class);
+    private final List<CorrelationData> sent = new CopyOnWriteArrayList<>();
+    private MeterRegistry meterRegistry;
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        when(streamBridge.send(anyString(), any(Message.class))).thenAnswer(invocation -> {
+            Message<?> message = invocation.getArgument(1);
+            sent.add((CorrelationData) message.getHeaders().get(AmqpHeaders.PUBLISH_CONFIRM_CORRELATION));
+            return true;
+        });
+    }
+
+    @Test
+    void publishCompletesOnAck() {
+        EventPublisher publisher = createPublisher(true, 10);
+
+        Mono<Void> publish = publisher.publish("products-out-0", new Event<>(DELETE, 1, null)).cache();
+        AtomicBoolean done = new AtomicBoolean();
+        publish.subscribe(null, null, () -> done.set(true));
+
+        awaitSent(1);
+        assertFalse(done.get());
+
+        sent.getFirst().getFuture().complete(new CorrelationData.Confirm(true, null));
+        publish.block(TIMEOUT);
+        assertEquals(0.0, gauge("composite.publish.outstanding"));
+    }
+
+    @Test
+    void publishFailsOnNack() {
+        EventPublisher publisher = createPublisher(true, 10);
+
+        Mono<Void> publish = publisher.publish("products-out-0", new Event<>(DELETE, 1, null)).cache();
+        publish.subscribe(null, _ -> {});
+
+        awaitSent(1);
+        sent.getFirst().getFuture().complete(new CorrelationData.Confirm(false, "queue is full"));
+
+        MessageDeliveryException thrown = assertThrows(MessageDeliveryException.class, () -> publish.block(TIMEOUT));
+        assertTrue(thrown.getMessage().contains("queue is full"));
+    }
+
+    @Test
+    void outstandingConfirmsAreLimited() throws InterruptedException {
+        EventPublisher publisher = createPublisher(true, 2);
+        CountDownLatch thirdSent = new CountDownLatch(3);
+        when(streamBridge.send(anyString(), any(Message.class))).thenAnswer(invocation -> {
+            Message<?> message = invocation.getArgument(1);
+            sent.add((CorrelationData) message.getHeaders().get(AmqpHeaders.PUBLISH_CONFIRM_CORRELATION));
+            thirdSent.countDown();
+            return true;
+        });
+
+        for (int i = 0; i < 3; i++) {
+            publisher.publish("products-out-0", new Event<>(DELETE, i, null)).subscribe();
+        }
+
+        // The third message is held back until one of the first two is confirmed, the wait ends as soon as it is sent
+        awaitSent(2);
+        assertEquals(1.0, gauge("composite.publish.waiting"));
+        assertFalse(thirdSent.await(100, TimeUnit.MILLISECONDS));
+        assertEquals(2, sent.size());
+
+        sent.getFirst().getFuture().complete(new CorrelationData.Confirm(true, null));
+        awaitSent(3);
+        assertEquals(0.0, gauge("composite.publish.waiting"));
+    }
+
+    @Test
+    void disabledConfirmsCompleteOnSend() {
+        EventPublisher publisher = createPublisher(false, 1);
+
+        publisher.publish("products-out-0", new Event<>(DELETE, 1, null)).block(TIMEOUT);
+        publisher.publish("products-out-0", new Event<>(DELETE, 2, null)).block(TIMEOUT);
+
+        assertEquals(2, sent.size());
+        assertNull(sent.getFirst());
+    }
+
+    private EventPublisher createPublisher(boolean confirmsEnabled, int maxOutstandingConfirms) {
+        return new EventPublisher(streamBridge, Schedulers.boundedElastic(), meterRegistry,
+                confirmsEnabled, maxOutstandingConfirms, TIMEOUT);
+    }
+
+    private void awaitSent(int count) {
+        long deadline = System.currentTimeMillis() + TIMEOUT.toMillis();
+        while (sent.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.onSpinWait();
+        }
+        assertEquals(count, sent.size());
+    }
+
+    private double gauge(String name) {
+        return meterRegistry.get(name).gauge().value();
+    }
+}
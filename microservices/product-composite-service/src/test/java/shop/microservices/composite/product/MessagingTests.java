@@ -39,7 +39,9 @@ import static shop.microservices.composite.product.IsSameEvent.sameEventExceptCr
 @SpringBootTest(
         webEnvironment = RANDOM_PORT, properties = {
         "spring.main.allow-bean-definition-overriding=true",
-        "eureka.client.enabled=false"
+        "eureka.client.enabled=false",
+        "spring.cloud.function.definition=",
+        "app.publisher.confirms.enabled=false"
 })
 @Import({TestChannelBinderConfiguration.class})
 class MessagingTests {
@@ -98,24 +100,38 @@ class MessagingTests {
                 new Event<>(CREATE, composite.productId(), new Product(composite.productId(), composite.name(), composite.weight(), null));
         assertThat(productMessages.getFirst(), is(sameEventExceptCreatedAt(expectedProductEvent)));
 
-        // Assert one create recommendation event queued up
+        // Assert one create batch event with all recommendations queued up
         assertEquals(1, recommendationMessages.size());
 
         RecommendationSummary rec = composite.recommendations().getFirst();
-        Event<Integer, Product> expectedRecommendationEvent =
-                new Event(CREATE, composite.productId(),
-                        new Recommendation(composite.productId(), rec.recommendationId(), rec.author(), rec.rate(), rec.content(), null));
+        Event<Integer, Recommendation> expectedRecommendationEvent =
+                Event.createBatch(composite.productId(), List.of(
+                        new Recommendation(composite.productId(), rec.recommendationId(), rec.author(), rec.rate(), rec.content(), null)));
         assertThat(recommendationMessages.getFirst(), is(sameEventExceptCreatedAt(expectedRecommendationEvent)));
 
-        // Assert one create review event queued up
+        // Assert one create batch event with all reviews queued up
         assertEquals(1, reviewMessages.size());
 
         ReviewSummary rev = composite.reviews().getFirst();
-        Event<Integer, Product> expectedReviewEvent =
-                new Event(CREATE, composite.productId(), new Review(composite.productId(), rev.reviewId(), rev.author(), rev.subject(), rev.content(), rev.rating(), LocalDate.now(), null));
+        Event<Integer, Review> expectedReviewEvent =
+                Event.createBatch(composite.productId(), List.of(
+                        new Review(composite.productId(), rev.reviewId(), rev.author(), rev.subject(), rev.content(), rev.rating(), LocalDate.now(), null)));
         assertThat(reviewMessages.getFirst(), is(sameEventExceptCreatedAt(expectedReviewEvent)));
     }
 
+    @Test
+    void createCompositeProductWithManyChildren() {
+        ProductAggregate composite = new ProductAggregate(1, "name", 1,
+                List.of(new RecommendationSummary(1, "a", 1, "c"), new RecommendationSummary(2, "b", 2, "d")),
+                List.of(new ReviewSummary(1, "a", "s", "c", 4), new ReviewSummary(2, "b", "t", "d", 5), new ReviewSummary(3, "c", "u", "e", 3)), null);
+        postAndVerifyProduct(composite, ACCEPTED);
+
+        // Assert a single event per core service, regardless of the number of recommendations and reviews
+        assertEquals(1, getMessages("products").size());
+        assertEquals(1, getMessages("recommendations").size());
+        assertEquals(1, getMessages("reviews").size());
+    }
+
     @Test
     void deleteCompositeProduct() {
         deleteAndVerifyProduct(1, ACCEPTED);
@@ -0,0 +1,78 @@
+package shop.microservices.composite.product;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.cloud.stream.binder.BinderHeaders;
+import org.springframework.cloud.stream.binder.test.OutputDestination;
+import org.springframework.cloud.stream.binder.test.TestChannelBinderConfiguration;
+import org.springframework.context.annotation.Import;
+import org.springframework.messaging.Message;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.springframework.boot.test.context.SpringBootTest.WebEnvironment.RANDOM_PORT;
+
+@SpringBootTest(
+        webEnvironment = RANDOM_PORT, properties = {
+        "spring.main.allow-bean-definition-overriding=true",
+        "eureka.client.enabled=false",
+        "spring.cloud.function.definition=",
+        "app.publisher.confirms.enabled=false"
+})
+@Import({TestChannelBinderConfiguration.class})
+@ActiveProfiles("streaming_partitioned")
+class PartitionedMessagingTests {
+
+    @Autowired
+    private WebTestClient client;
+
+    @Autowired
+    private OutputDestination target;
+
+    @BeforeEach
+    void setUp() {
+        getMessages("products");
+        getMessages("recommendations");
+        getMessages("reviews");
+    }
+
+    @Test
+    void eventsOfAProductGoToTheSamePartition() {
+        deleteProduct(1);
+        deleteProduct(2);
+        deleteProduct(3);
+
+        // The events of each product end up in partition productId % partitionCount, for all three destinations
+        for (String destination : List.of("products", "recommendations", "reviews")) {
+            assertEquals(List.of(1, 0, 1), partitionsOf(getMessages(destination)));
+        }
+    }
+
+    private List<Integer> partitionsOf(List<Message<byte[]>> messages) {
+        return messages.stream()
+                .map(message -> (Integer) message.getHeaders().get(BinderHeaders.PARTITION_HEADER))
+                .toList();
+    }
+
+    private List<Message<byte[]>> getMessages(String destination) {
+        List<Message<byte[]>> messages = new ArrayList<>();
+        Message<byte[]> message;
+        while ((message = target.receive(0, destination)) != null) {
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    private void deleteProduct(int productId) {
+        client.delete()
+                .uri("/product-composite/" + productId)
+                .exchange()
+                .expectStatus().isAccepted();
+    }
+}
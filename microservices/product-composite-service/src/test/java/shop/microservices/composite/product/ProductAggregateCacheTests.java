@@ -0,0 +1,63 @@
+package shop.microservices.composite.product;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import shop.api.composite.product.ProductAggregate;
+import shop.microservices.composite.product.services.ProductAggregateCache;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ProductAggregateCacheTests {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+    private final ProductAggregateCache cache =
+            new ProductAggregateCache(true, 100, Duration.ofMinutes(5), Duration.ofMillis(200), new SimpleMeterRegistry());
+
+    @Test
+    void loadInFlightDuringAnInvalidationIsNotCached() {
+        Sinks.One<ProductAggregate> load = Sinks.one();
+        Mono<ProductAggregate> result = cache.get(1, load::asMono).cache();
+        result.subscribe();
+
+        cache.invalidate(1);
+        load.tryEmitValue(aggregate(1));
+        result.block(TIMEOUT);
+
+        assertTrue(cache.getIfPresent(1).isEmpty());
+    }
+
+    @Test
+    void invalidationOnlyAffectsItsOwnProduct() {
+        Sinks.One<ProductAggregate> load = Sinks.one();
+        Mono<ProductAggregate> result = cache.get(2, load::asMono).cache();
+        result.subscribe();
+
+        cache.invalidate(1);
+        load.tryEmitValue(aggregate(2));
+        result.block(TIMEOUT);
+
+        assertTrue(cache.getIfPresent(2).isPresent());
+    }
+
+    @Test
+    void entryCachedRightAfterAnInvalidationIsInvalidatedAgain() {
+        cache.invalidate(3);
+
+        // A read between the event and the write in the core service caches the aggregate as it was before the write
+        cache.get(3, () -> Mono.just(aggregate(3))).block(TIMEOUT);
+        assertTrue(cache.getIfPresent(3).isPresent());
+
+        Mono.delay(Duration.ofMillis(500)).block(TIMEOUT);
+        assertTrue(cache.getIfPresent(3).isEmpty());
+    }
+
+    private static ProductAggregate aggregate(int productId) {
+        return new ProductAggregate(productId, "name", 1, List.of(), List.of(), null);
+    }
+}
@@ -3,6 +3,7 @@ package shop.microservices.composite.product;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.http.HttpStatus;
@@ -10,19 +11,34 @@ import org.springframework.test.context.bean.override.mockito.MockitoBean;
 import org.springframework.test.web.reactive.server.WebTestClient;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import shop.api.composite.product.ProductAggregate;
 import shop.api.core.product.Product;
 import shop.api.core.recommendation.Recommendation;
 import shop.api.core.review.Review;
+import shop.api.core.review.ReviewPage;
+import shop.api.core.review.ReviewStats;
+import shop.api.event.Event;
 import shop.api.exceptions.InvalidInputException;
 import shop.api.exceptions.NotFoundException;
 import shop.microservices.composite.product.services.ProductCompositeIntegration;
+import shop.microservices.composite.product.services.Snapshot;
 
 import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 
-import static org.mockito.Mockito.when;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.*;
 import static org.springframework.boot.test.context.SpringBootTest.WebEnvironment.RANDOM_PORT;
 import static org.springframework.http.HttpStatus.*;
 import static org.springframework.http.MediaType.APPLICATION_JSON;
+import static org.springframework.http.MediaType.APPLICATION_NDJSON;
+import static org.springframework.http.MediaType.TEXT_EVENT_STREAM;
+import static shop.api.event.Event.Type.CREATE;
 
 @AutoConfigureMockMvc
 @SpringBootTest(webEnvironment = RANDOM_PORT, properties = {"eureka.client.enabled=false"})
@@ -31,6 +47,10 @@ class ProductCompositeApiTests {
     private static final int PRODUCT_ID_OK = 1;
     private static final int PRODUCT_ID_NOT_FOUND = 2;
     private static final int PRODUCT_ID_INVALID = 3;
+    private static final int PRODUCT_ID_CACHED = 4;
+    private static final int PRODUCT_ID_STALE = 8;
+    private static final int PRODUCT_ID_PARTIAL = 9;
+    private static final int PRODUCT_ID_NO_REVIEWS = 10;
 
     @Autowired
     private WebTestClient client;
@@ -38,14 +58,22 @@ class ProductCompositeApiTests {
     @MockitoBean
     private ProductCompositeIntegration compositeIntegration;
 
+    @Autowired
+    @Qualifier("reviewEventProcessor")
+    private Consumer<Event<Integer, Review>> reviewEventProcessor;
+
     @BeforeEach
     void setUp() {
         when(compositeIntegration.getProduct(PRODUCT_ID_OK))
                 .thenReturn(Mono.just(new Product(PRODUCT_ID_OK, "name", 1, "mock-address")));
-        when(compositeIntegration.getRecommendations(PRODUCT_ID_OK))
-                .thenReturn(Flux.just(new Recommendation(PRODUCT_ID_OK, 1, "author", 1, "content", "mock address")));
+        Recommendation recommendation = new Recommendation(PRODUCT_ID_OK, 1, "author", 1, "content", "mock address");
+        Review review = new Review(PRODUCT_ID_OK, 1, "author", "subject", "content", 4, LocalDate.now(), "mock address");
+        when(compositeIntegration.getRecommendationsSnapshot(PRODUCT_ID_OK))
+                .thenReturn(Mono.just(Snapshot.fresh(List.of(recommendation))));
+        when(compositeIntegration.getReviewsSnapshot(PRODUCT_ID_OK))
+                .thenReturn(Mono.just(Snapshot.fresh(List.of(review))));
         when(compositeIntegration.getReviews(PRODUCT_ID_OK))
-                .thenReturn(Flux.just(new Review(PRODUCT_ID_OK, 1, "author", "subject", "content", 4, LocalDate.now(), "mock address")));
+                .thenReturn(Flux.just(review));
         when(compositeIntegration.getProduct(PRODUCT_ID_INVALID))
                 .thenThrow(new InvalidInputException("INVALID: " + PRODUCT_ID_INVALID));
         when(compositeIntegration.getProduct(PRODUCT_ID_NOT_FOUND))
@@ -56,17 +84,12 @@ class ProductCompositeApiTests {
                         new Product(5, "water", 1, "mock-address"),
                         new Product(6, "bread", 2, "mock-address"),
                         new Product(7, "sugar", 3, "mock-address")));
-        when(compositeIntegration.getRecommendations(5))
-                .thenReturn(Flux.just(
-                        new Recommendation(5, 5, "author", 5, "content", "mock address")
-                ));
-        when(compositeIntegration.getRecommendations(6)).thenReturn(Flux.just());
-        when(compositeIntegration.getRecommendations(7)).thenReturn(Flux.just());
-        when(compositeIntegration.getReviews(5)).thenReturn(Flux.just(
-                new Review(5, 5, "author", "subject", "content", 5, LocalDate.now(), "mock address")
-        ));
-        when(compositeIntegration.getReviews(6)).thenReturn(Flux.just());
-        when(compositeIntegration.getReviews(7)).thenReturn(Flux.just());
+        when(compositeIntegration.getRecommendationsSnapshotByProductIds(List.of(5, 6, 7)))
+                .thenReturn(Mono.just(Snapshot.fresh(Map.of(5, List.of(
+                        new Recommendation(5, 5, "author", 5, "content", "mock address"))))));
+        when(compositeIntegration.getReviewsSnapshotByProductIds(List.of(5, 6, 7)))
+                .thenReturn(Mono.just(Snapshot.fresh(Map.of(5, List.of(
+                        new Review(5, 5, "author", "subject", "content", 5, LocalDate.now(), "mock address"))))));
     }
 
     @Test
@@ -74,7 +97,129 @@ class ProductCompositeApiTests {
         getAndVerifyProduct(PRODUCT_ID_OK, OK)
                 .jsonPath("$.productId").isEqualTo(PRODUCT_ID_OK)
                 .jsonPath("$.recommendations.length()").isEqualTo(1)
+                .jsonPath("$.reviews.length()").isEqualTo(1)
+                .jsonPath("$.recommendationsStale").isEqualTo(false)
+                .jsonPath("$.reviewsStale").isEqualTo(false);
+    }
+
+    @Test
+    void getProductWithStaleReviews() {
+        Review review = new Review(PRODUCT_ID_STALE, 1, "author", "subject", "content", 4, LocalDate.now(), "mock address");
+        when(compositeIntegration.getProduct(PRODUCT_ID_STALE))
+                .thenReturn(Mono.just(new Product(PRODUCT_ID_STALE, "name", 1, "mock-address")));
+        when(compositeIntegration.getRecommendationsSnapshot(PRODUCT_ID_STALE)).thenReturn(Mono.just(Snapshot.fresh(List.of())));
+        when(compositeIntegration.getReviewsSnapshot(PRODUCT_ID_STALE)).thenReturn(Mono.just(Snapshot.stale(List.of(review))));
+
+        getAndVerifyProduct(PRODUCT_ID_STALE, OK)
+                .jsonPath("$.reviews.length()").isEqualTo(1)
+                .jsonPath("$.recommendationsStale").isEqualTo(false)
+                .jsonPath("$.reviewsStale").isEqualTo(true);
+
+        // Aggregates with stale parts are not cached
+        getAndVerifyProduct(PRODUCT_ID_STALE, OK);
+        verify(compositeIntegration, times(2)).getProduct(PRODUCT_ID_STALE);
+    }
+
+    @Test
+    void getProductWithProductPartOnly() {
+        mockPartialProduct();
+
+        getAndVerifyProduct(PRODUCT_ID_PARTIAL + "?include=product", OK)
+                .jsonPath("$.name").isEqualTo("name")
+                .jsonPath("$.weight").isEqualTo(1)
+                .jsonPath("$.recommendations").doesNotExist()
+                .jsonPath("$.reviews").doesNotExist();
+
+        verify(compositeIntegration, never()).getRecommendationsSnapshot(PRODUCT_ID_PARTIAL);
+        verify(compositeIntegration, never()).getReviewsSnapshot(PRODUCT_ID_PARTIAL);
+    }
+
+    @Test
+    void getProductWithReviewsOnly() {
+        mockPartialProduct();
+
+        getAndVerifyProduct(PRODUCT_ID_PARTIAL + "?include=reviews", OK)
+                .jsonPath("$.productId").isEqualTo(PRODUCT_ID_PARTIAL)
+                .jsonPath("$.name").doesNotExist()
+                .jsonPath("$.weight").doesNotExist()
+                .jsonPath("$.recommendations").doesNotExist()
                 .jsonPath("$.reviews.length()").isEqualTo(1);
+
+        // The reviews found tell that the product exists
+        verify(compositeIntegration, never()).getProduct(PRODUCT_ID_PARTIAL);
+        verify(compositeIntegration, never()).getRecommendationsSnapshot(PRODUCT_ID_PARTIAL);
+    }
+
+    @Test
+    void getProductPartsOfUnknownProduct() {
+        when(compositeIntegration.getReviewsSnapshot(PRODUCT_ID_NOT_FOUND)).thenReturn(Mono.just(Snapshot.fresh(List.of())));
+
+        getAndVerifyProduct(PRODUCT_ID_NOT_FOUND + "?include=reviews", NOT_FOUND)
+                .jsonPath("$.message").isEqualTo("NOT FOUND: " + PRODUCT_ID_NOT_FOUND);
+    }
+
+    @Test
+    void getEmptyProductPartsOfKnownProduct() {
+        when(compositeIntegration.getProduct(PRODUCT_ID_NO_REVIEWS))
+                .thenReturn(Mono.just(new Product(PRODUCT_ID_NO_REVIEWS, "name", 1, "mock-address")));
+        when(compositeIntegration.getReviewsSnapshot(PRODUCT_ID_NO_REVIEWS)).thenReturn(Mono.just(Snapshot.fresh(List.of())));
+
+        getAndVerifyProduct(PRODUCT_ID_NO_REVIEWS + "?include=reviews", OK)
+                .jsonPath("$.name").doesNotExist()
+                .jsonPath("$.reviews.length()").isEqualTo(0);
+    }
+
+    @Test
+    void getProductWithReviewStats() {
+        mockPartialProduct();
+        when(compositeIntegration.getReviewStats(PRODUCT_ID_PARTIAL)).thenReturn(Mono.just(
+                new ReviewStats(PRODUCT_ID_PARTIAL, 2, 4.5, Map.of(1, 0, 2, 0, 3, 0, 4, 1, 5, 1), LocalDate.of(2024, 5, 1), "mock address")));
+
+        getAndVerifyProduct(PRODUCT_ID_PARTIAL + "?include=product,stats", OK)
+                .jsonPath("$.name").isEqualTo("name")
+                .jsonPath("$.reviews").doesNotExist()
+                .jsonPath("$.reviewStats.count").isEqualTo(2)
+                .jsonPath("$.reviewStats.averageRating").isEqualTo(4.5)
+                .jsonPath("$.reviewStats.ratingHistogram.5").isEqualTo(1)
+                .jsonPath("$.reviewStats.latestReviewDate").isEqualTo("2024-05-01");
+
+        verify(compositeIntegration, never()).getReviewsSnapshot(PRODUCT_ID_PARTIAL);
+    }
+
+    @Test
+    void getProductLeavesOutReviewStatsUnlessAsked() {
+        mockPartialProduct();
+
+        getAndVerifyProduct(PRODUCT_ID_PARTIAL, OK)
+                .jsonPath("$.reviews.length()").isEqualTo(1)
+                .jsonPath("$.reviewStats").doesNotExist();
+
+        verify(compositeIntegration, never()).getReviewStats(anyInt());
+    }
+
+    @Test
+    void getProductInvalidInclude() {
+        getAndVerifyProduct(PRODUCT_ID_OK + "?include=product,prices", UNPROCESSABLE_ENTITY)
+                .jsonPath("$.message").isEqualTo("Invalid include: prices, must be one of product, recommendations, reviews, stats");
+    }
+
+    @Test
+    void getProductIsCachedUntilInvalidatedByEvent() {
+        when(compositeIntegration.getProduct(PRODUCT_ID_CACHED))
+                .thenReturn(Mono.just(new Product(PRODUCT_ID_CACHED, "name", 1, "mock-address")));
+        when(compositeIntegration.getRecommendationsSnapshot(PRODUCT_ID_CACHED)).thenReturn(Mono.just(Snapshot.fresh(List.of())));
+        when(compositeIntegration.getReviewsSnapshot(PRODUCT_ID_CACHED)).thenReturn(Mono.just(Snapshot.fresh(List.of())));
+
+        getAndVerifyProduct(PRODUCT_ID_CACHED, OK).jsonPath("$.reviews.length()").isEqualTo(0);
+        getAndVerifyProduct(PRODUCT_ID_CACHED, OK).jsonPath("$.reviews.length()").isEqualTo(0);
+        verify(compositeIntegration, times(1)).getProduct(PRODUCT_ID_CACHED);
+
+        Review review = new Review(PRODUCT_ID_CACHED, 1, "author", "subject", "content", 4, LocalDate.now(), null);
+        when(compositeIntegration.getReviewsSnapshot(PRODUCT_ID_CACHED)).thenReturn(Mono.just(Snapshot.fresh(List.of(review))));
+        reviewEventProcessor.accept(new Event<>(CREATE, PRODUCT_ID_CACHED, review));
+
+        getAndVerifyProduct(PRODUCT_ID_CACHED, OK).jsonPath("$.reviews.length()").isEqualTo(1);
+        verify(compositeIntegration, times(2)).getProduct(PRODUCT_ID_CACHED);
     }
 
     @Test
@@ -102,6 +247,23 @@ class ProductCompositeApiTests {
                 .jsonPath("$[0].rating").isEqualTo(4);
     }
 
+    @Test
+    void getReviewPage() {
+        Review review = new Review(PRODUCT_ID_OK, 2, "author", "subject", "content", 4, LocalDate.now(), "mock address");
+        when(compositeIntegration.getReviewPage(PRODUCT_ID_OK, "2024-05-01_3", 1))
+                .thenReturn(Mono.just(new ReviewPage(List.of(review), "2024-05-01_2")));
+
+        client.get()
+                .uri("/product-composite/reviews/" + PRODUCT_ID_OK + "?limit=1&after=2024-05-01_3")
+                .accept(APPLICATION_JSON)
+                .exchange()
+                .expectStatus().isEqualTo(OK)
+                .expectBody()
+                .jsonPath("$.reviews.length()").isEqualTo(1)
+                .jsonPath("$.reviews[0].reviewId").isEqualTo(2)
+                .jsonPath("$.nextCursor").isEqualTo("2024-05-01_2");
+    }
+
     @Test
     void getAllProducts() {
         client.get()
@@ -116,12 +278,131 @@ class ProductCompositeApiTests {
                 .jsonPath("$[0].recommendations[0].author").isEqualTo("author")
                 .jsonPath("$[0].reviews[0].author").isEqualTo("author")
                 .jsonPath("$[1].name").isEqualTo("bread")
+                .jsonPath("$[1].recommendations.length()").isEqualTo(0)
+                .jsonPath("$[1].reviews.length()").isEqualTo(0)
                 .jsonPath("$[2].name").isEqualTo("sugar");
+
+        // Children of all products are fetched with one batch call per core service
+        verify(compositeIntegration, times(1)).getRecommendationsSnapshotByProductIds(List.of(5, 6, 7));
+        verify(compositeIntegration, times(1)).getReviewsSnapshotByProductIds(List.of(5, 6, 7));
+        verify(compositeIntegration, never()).getRecommendationsSnapshot(anyInt());
+        verify(compositeIntegration, never()).getReviewsSnapshot(anyInt());
+    }
+
+    @Test
+    void getAllProductsWithProductPartOnly() {
+        client.get()
+                .uri("/product-composite?include=product")
+                .accept(APPLICATION_JSON)
+                .exchange()
+                .expectStatus().isEqualTo(OK)
+                .expectBody()
+                .jsonPath("$.length()").isEqualTo(3)
+                .jsonPath("$[0].name").isEqualTo("water")
+                .jsonPath("$[0].recommendations").doesNotExist()
+                .jsonPath("$[0].reviews").doesNotExist();
+
+        verify(compositeIntegration, never()).getRecommendationsSnapshotByProductIds(anyList());
+        verify(compositeIntegration, never()).getReviewsSnapshotByProductIds(anyList());
+    }
+
+    @Test
+    void getAllProductsWithStaleReviews() {
+        when(compositeIntegration.getReviewsSnapshotByProductIds(List.of(5, 6, 7)))
+                .thenReturn(Mono.just(Snapshot.stale(Map.of(5, List.of(
+                        new Review(5, 5, "author", "subject", "content", 5, LocalDate.now(), "mock address"))))));
+
+        client.get()
+                .uri("/product-composite")
+                .accept(APPLICATION_JSON)
+                .exchange()
+                .expectStatus().isEqualTo(OK)
+                .expectBody()
+                .jsonPath("$[0].reviews.length()").isEqualTo(1)
+                .jsonPath("$[0].reviewsStale").isEqualTo(true)
+                .jsonPath("$[0].recommendationsStale").isEqualTo(false)
+                .jsonPath("$[1].reviews.length()").isEqualTo(0)
+                .jsonPath("$[1].reviewsStale").isEqualTo(true);
+    }
+
+    @Test
+    void getAllProductsLeavesOutReviewStatsThatCantBeFetched() {
+        when(compositeIntegration.getReviewStatsByProductIds(List.of(5, 6, 7))).thenReturn(Flux.error(new RuntimeException("unavailable")));
+
+        client.get()
+                .uri("/product-composite?include=product,stats")
+                .accept(APPLICATION_JSON)
+                .exchange()
+                .expectStatus().isEqualTo(OK)
+                .expectBody()
+                .jsonPath("$.length()").isEqualTo(3)
+                .jsonPath("$[0].reviewStats").doesNotExist();
+    }
+
+    @Test
+    void getAllProductsWithReviewStats() {
+        when(compositeIntegration.getReviewStatsByProductIds(List.of(5, 6, 7))).thenReturn(Flux.just(
+                new ReviewStats(5, 1, 3.0, Map.of(1, 0, 2, 0, 3, 1, 4, 0, 5, 0), LocalDate.of(2024, 5, 1), "mock address")));
+
+        client.get()
+                .uri("/product-composite?include=product,stats")
+                .accept(APPLICATION_JSON)
+                .exchange()
+                .expectStatus().isEqualTo(OK)
+                .expectBody()
+                .jsonPath("$.length()").isEqualTo(3)
+                .jsonPath("$[0].reviewStats.count").isEqualTo(1)
+                .jsonPath("$[0].reviewStats.averageRating").isEqualTo(3.0)
+                .jsonPath("$[1].reviewStats.count").isEqualTo(0)
+                .jsonPath("$[1].reviewStats.averageRating").doesNotExist();
+
+        verify(compositeIntegration, times(1)).getReviewStatsByProductIds(List.of(5, 6, 7));
+        verify(compositeIntegration, never()).getReviewsSnapshotByProductIds(anyList());
+    }
+
+    @Test
+    void getAllProductsAsNdjsonStream() {
+        List<ProductAggregate> aggregates = client.get()
+                .uri("/product-composite")
+                .accept(APPLICATION_NDJSON)
+                .exchange()
+                .expectStatus().isEqualTo(OK)
+                .expectHeader().contentTypeCompatibleWith(APPLICATION_NDJSON)
+                .returnResult(ProductAggregate.class)
+                .getResponseBody()
+                .collectList()
+                .block();
+
+        assertNotNull(aggregates);
+        assertEquals(List.of("water", "bread", "sugar"), aggregates.stream().map(ProductAggregate::name).toList());
+        assertEquals(1, aggregates.getFirst().reviews().size());
+    }
+
+    @Test
+    void getAllProductsAsEventStream() {
+        client.get()
+                .uri("/product-composite")
+                .accept(TEXT_EVENT_STREAM)
+                .exchange()
+                .expectStatus().isEqualTo(OK)
+                .expectHeader().contentTypeCompatibleWith(TEXT_EVENT_STREAM);
+    }
+
+    private void mockPartialProduct() {
+        when(compositeIntegration.getProduct(PRODUCT_ID_PARTIAL))
+                .thenReturn(Mono.just(new Product(PRODUCT_ID_PARTIAL, "name", 1, "mock-address")));
+        when(compositeIntegration.getRecommendationsSnapshot(PRODUCT_ID_PARTIAL)).thenReturn(Mono.just(Snapshot.fresh(List.of())));
+        when(compositeIntegration.getReviewsSnapshot(PRODUCT_ID_PARTIAL)).thenReturn(Mono.just(Snapshot.fresh(List.of(
+                new Review(PRODUCT_ID_PARTIAL, 1, "author", "subject", "content", 4, LocalDate.now(), "mock address")))));
     }
 
     private WebTestClient.BodyContentSpec getAndVerifyProduct(int productId, HttpStatus expectedStatus) {
+        return getAndVerifyProduct(String.valueOf(productId), expectedStatus);
+    }
+
+    private WebTestClient.BodyContentSpec getAndVerifyProduct(String productIdPath, HttpStatus expectedStatus) {
         return client.get()
-                .uri("/product-composite/" + productId)
+                .uri("/product-composite/" + productIdPath)
                 .accept(APPLICATION_JSON)
                 .exchange()
                 .expectStatus().isEqualTo(expectedStatus)
@@ -0,0 +1,158 @@
+package shop.microservices.composite.product;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import shop.api.core.product.Product;
+import shop.api.core.recommendation.Recommendation;
+import shop.api.core.review.Review;
+import shop.api.event.Event;
+import shop.microservices.composite.product.services.ProductCompositeIntegration;
+import shop.microservices.composite.product.services.ProductReadModel;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static shop.api.event.Event.Type.CREATE;
+import static shop.api.event.Event.Type.DELETE;
+
+class ProductReadModelTests {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+    private final ProductCompositeIntegration integration = mock(ProductCompositeIntegration.class);
+    private final ProductReadModel readModel = new ProductReadModel(integration, new SimpleMeterRegistry(), true, 2, Duration.ZERO);
+
+    @Test
+    void eventsBuildTheAggregates() {
+        readModel.applyRecommendationEvent(Event.createBatch(1, List.of(recommendation(1, 2), recommendation(1, 1))));
+        assertTrue(readModel.get(1).isEmpty(), "A product is only found once its create event is seen");
+
+        readModel.applyProductEvent(new Event<>(CREATE, 1, product(1)));
+        readModel.applyReviewEvent(new Event<>(CREATE, 1, review(1, 1)));
+
+        ProductReadModel.Entry entry = readModel.get(1).orElseThrow();
+        assertEquals("name-1", entry.product().name());
+        assertEquals(List.of(1, 2), List.copyOf(entry.recommendations().keySet()));
+        assertEquals(List.of(1), List.copyOf(entry.reviews().keySet()));
+
+        readModel.applyProductEvent(new Event<>(DELETE, 1, null));
+        readModel.applyRecommendationEvent(new Event<>(DELETE, 1, null));
+        readModel.applyReviewEvent(new Event<>(DELETE, 1, null));
+
+        assertTrue(readModel.get(1).isEmpty());
+        assertEquals(0, readModel.getAll().count().block(TIMEOUT));
+    }
+
+    @Test
+    void bootstrapReadsTheCoreServicesInChunks() {
+        when(integration.getAllProducts()).thenReturn(Flux.just(product(1), product(2), product(3)));
+        when(integration.getRecommendationsByProductIds(List.of(1, 2))).thenReturn(Flux.just(recommendation(1, 1), recommendation(2, 1)));
+        when(integration.getReviewsByProductIds(List.of(1, 2))).thenReturn(Flux.just(review(2, 1)));
+        when(integration.getRecommendationsByProductIds(List.of(3))).thenReturn(Flux.empty());
+        when(integration.getReviewsByProductIds(List.of(3))).thenReturn(Flux.just(review(3, 1)));
+
+        assertFalse(readModel.isReady());
+        readModel.rebuild().block(TIMEOUT);
+
+        assertTrue(readModel.isReady());
+        assertEquals(List.of(1, 2, 3), readModel.getAll().map(entry -> entry.product().productId()).collectList().block(TIMEOUT));
+        assertEquals(1, readModel.get(2).orElseThrow().recommendations().size());
+        assertEquals(1, readModel.get(3).orElseThrow().reviews().size());
+    }
+
+    @Test
+    void bootstrapIsRetriedIfChildrenCantBeRead() {
+        AtomicInteger reviewCalls = new AtomicInteger();
+        when(integration.getAllProducts()).thenReturn(Flux.just(product(1)));
+        when(integration.getRecommendationsByProductIds(List.of(1))).thenReturn(Flux.empty());
+        when(integration.getReviewsByProductIds(List.of(1))).thenReturn(Flux.defer(() -> reviewCalls.incrementAndGet() == 1
+                ? Flux.error(new RuntimeException("review service is down"))
+                : Flux.just(review(1, 1))));
+
+        readModel.rebuild().block(TIMEOUT);
+
+        assertTrue(readModel.isReady());
+        assertEquals(2, reviewCalls.get());
+        assertEquals(1, readModel.get(1).orElseThrow().reviews().size());
+    }
+
+    @Test
+    void eventsDuringBootstrapWinOverWhatItReads() {
+        Sinks.One<List<Recommendation>> recommendations = Sinks.one();
+        when(integration.getAllProducts()).thenReturn(Flux.just(product(1), product(2)));
+        when(integration.getRecommendationsByProductIds(List.of(1, 2)))
+                .thenReturn(recommendations.asMono().flatMapIterable(list -> list));
+        when(integration.getReviewsByProductIds(List.of(1, 2))).thenReturn(Flux.just(review(1, 1)));
+
+        Mono<Void> rebuild = readModel.rebuild().cache();
+        rebuild.subscribe();
+
+        // While the bootstrap waits for the recommendations, product 1 gets a new recommendation and product 2 is deleted
+        readModel.applyRecommendationEvent(new Event<>(CREATE, 1, recommendation(1, 2)));
+        readModel.applyProductEvent(new Event<>(DELETE, 2, null));
+        readModel.applyRecommendationEvent(new Event<>(DELETE, 2, null));
+        recommendations.tryEmitValue(List.of(recommendation(1, 1), recommendation(2, 1)));
+        rebuild.block(TIMEOUT);
+
+        ProductReadModel.Entry entry = readModel.get(1).orElseThrow();
+        assertEquals(List.of(1, 2), List.copyOf(entry.recommendations().keySet()));
+        assertEquals(1, entry.reviews().size());
+        assertTrue(readModel.get(2).isEmpty());
+    }
+
+    @Test
+    void rebuildDropsWhatTheCoreServicesDontHave() {
+        // Events for a product and a recommendation that the core services rejected
+        readModel.applyProductEvent(new Event<>(CREATE, 1, product(1)));
+        readModel.applyRecommendationEvent(new Event<>(CREATE, 1, recommendation(1, 9)));
+        readModel.applyProductEvent(new Event<>(CREATE, 2, product(2)));
+
+        when(integration.getAllProducts()).thenReturn(Flux.just(product(1)));
+        when(integration.getRecommendationsByProductIds(List.of(1))).thenReturn(Flux.just(recommendation(1, 1)));
+        when(integration.getReviewsByProductIds(List.of(1))).thenReturn(Flux.empty());
+
+        readModel.rebuild().block(TIMEOUT);
+
+        assertEquals(List.of(1), List.copyOf(readModel.get(1).orElseThrow().recommendations().keySet()));
+        assertTrue(readModel.get(2).isEmpty());
+        assertEquals(1, readModel.getAll().count().block(TIMEOUT));
+    }
+
+    @Test
+    void rebuildKeepsProductsCreatedWhileItRuns() {
+        Sinks.One<List<Review>> reviews = Sinks.one();
+        when(integration.getAllProducts()).thenReturn(Flux.just(product(1)));
+        when(integration.getRecommendationsByProductIds(List.of(1))).thenReturn(Flux.empty());
+        when(integration.getReviewsByProductIds(List.of(1))).thenReturn(reviews.asMono().flatMapIterable(list -> list));
+
+        Mono<Void> rebuild = readModel.rebuild().cache();
+        rebuild.subscribe();
+
+        // Created after the core services were read, so the rebuild doesn't see it
+        readModel.applyProductEvent(new Event<>(CREATE, 2, product(2)));
+        reviews.tryEmitValue(List.of());
+        rebuild.block(TIMEOUT);
+
+        assertEquals(List.of(1, 2), readModel.getAll().map(entry -> entry.product().productId()).collectList().block(TIMEOUT));
+    }
+
+    private static Product product(int productId) {
+        return new Product(productId, "name-" + productId, productId, null);
+    }
+
+    private static Recommendation recommendation(int productId, int recommendationId) {
+        return new Recommendation(productId, recommendationId, "author", 1, "content", null);
+    }
+
+    private static Review review(int productId, int reviewId) {
+        return new Review(productId, reviewId, "author", "subject", "content", 4, LocalDate.now(), null);
+    }
+}
@@ -0,0 +1,101 @@
+package shop.microservices.composite.product;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import shop.api.exceptions.NotFoundException;
+import shop.microservices.composite.product.services.RequestCoalescer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+
+class RequestCoalescerTests {
+
+    private MeterRegistry meterRegistry;
+    private RequestCoalescer<Integer, String> coalescer;
+
+    private final AtomicInteger calls = new AtomicInteger();
+    private final List<Sinks.One<String>> downstream = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        coalescer = new RequestCoalescer<>("test", meterRegistry);
+    }
+
+    @Test
+    void concurrentCallsForSameKeyShareOneCall() {
+        List<String> results = new ArrayList<>();
+        coalescer.execute(1, this::call).subscribe(results::add);
+        coalescer.execute(1, this::call).subscribe(results::add);
+        coalescer.execute(1, this::call).subscribe(results::add);
+
+        assertEquals(1, calls.get());
+        assertEquals(2.0, collapsed());
+
+        downstream.getFirst().tryEmitValue("value");
+        assertEquals(List.of("value", "value", "value"), results);
+
+        // The key is released on completion, so a later call goes downstream again
+        coalescer.execute(1, this::call).subscribe();
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    void callsForDifferentKeysAreNotCollapsed() {
+        coalescer.execute(1, this::call).subscribe();
+        coalescer.execute(2, this::call).subscribe();
+
+        assertEquals(2, calls.get());
+        assertEquals(0.0, collapsed());
+    }
+
+    @Test
+    void keyIsReleasedOnError() {
+        List<Throwable> errors = new ArrayList<>();
+        coalescer.execute(1, this::call).subscribe(_ -> {}, errors::add);
+        coalescer.execute(1, this::call).subscribe(_ -> {}, errors::add);
+
+        downstream.getFirst().tryEmitError(new NotFoundException("No product found for productId: 1"));
+        assertEquals(2, errors.size());
+        errors.forEach(error -> assertInstanceOf(NotFoundException.class, error));
+
+        coalescer.execute(1, this::call).subscribe();
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    void keyIsReleasedWhenAllSubscribersCancel() {
+        Disposable first = coalescer.execute(1, this::call).subscribe();
+        Disposable second = coalescer.execute(1, this::call).subscribe();
+
+        // The downstream call keeps running as long as one subscriber is left
+        first.dispose();
+        assertEquals(1, downstream.getFirst().currentSubscriberCount());
+
+        second.dispose();
+        assertEquals(0, downstream.getFirst().currentSubscriberCount());
+
+        coalescer.execute(1, this::call).subscribe();
+        assertEquals(2, calls.get());
+    }
+
+    private Mono<String> call() {
+        calls.incrementAndGet();
+        Sinks.One<String> sink = Sinks.one();
+        downstream.add(sink);
+        return sink.asMono();
+    }
+
+    private double collapsed() {
+        return meterRegistry.get("composite.requests.collapsed").tag("call", "test").counter().count();
+    }
+}
@@ -0,0 +1,113 @@
+package shop.microservices.composite.product;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+import shop.microservices.composite.product.services.RequestHedger;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RequestHedgerTests {
+
+    private static final Duration MIN_DELAY = Duration.ofMillis(10);
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+    private MeterRegistry meterRegistry;
+    private final AtomicInteger calls = new AtomicInteger();
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+    }
+
+    @Test
+    void slowPrimaryIsHedged() {
+        RequestHedger hedger = new RequestHedger(true, 0.95, MIN_DELAY, 1.0, meterRegistry);
+
+        assertEquals("hedged", hedger.hedge("test", this::slowThenFastCall).block(TIMEOUT));
+        assertEquals(2, calls.get());
+        assertEquals(1.0, counter("composite.hedge.fired"));
+        assertEquals(1.0, counter("composite.hedge.won"));
+    }
+
+    @Test
+    void cancelledPrimaryIsRecordedAsAtLeastTheHedgeDelay() {
+        RequestHedger hedger = new RequestHedger(true, 0.95, MIN_DELAY, 1.0, meterRegistry);
+
+        hedger.hedge("test", this::slowThenFastCall).block(TIMEOUT);
+
+        Timer latency = meterRegistry.get("composite.downstream.latency").tag("call", "test").timer();
+        assertEquals(1, latency.count());
+        assertTrue(latency.max(TimeUnit.MILLISECONDS) >= MIN_DELAY.toMillis());
+    }
+
+    @Test
+    void fastPrimaryIsNotHedged() {
+        RequestHedger hedger = new RequestHedger(true, 0.95, Duration.ofSeconds(1), 1.0, meterRegistry);
+
+        assertEquals("primary", hedger.hedge("test", () -> callWith("primary")).block(TIMEOUT));
+        assertEquals(1, calls.get());
+        assertEquals(0.0, counter("composite.hedge.fired"));
+    }
+
+    @Test
+    void noHedgeWithoutBudget() {
+        RequestHedger hedger = new RequestHedger(true, 0.95, MIN_DELAY, 0.0, meterRegistry);
+
+        assertEquals("slow", hedger.hedge("test", () -> callWith("slow").delayElement(Duration.ofMillis(200))).block(TIMEOUT));
+        assertEquals(1, calls.get());
+        assertEquals(0.0, counter("composite.hedge.fired"));
+    }
+
+    @Test
+    void budgetLimitsHedgedRequests() {
+        // A budget of 50% gives one hedged request per two primary requests.
+        // None of the requests answer, so no latency is recorded and the hedge delay stays at its minimum.
+        // The hedge delays run on virtual time, so every one of them has passed once the time is advanced
+        RequestHedger hedger = new RequestHedger(true, 0.95, MIN_DELAY, 0.5, meterRegistry);
+
+        StepVerifier.withVirtualTime(() -> Flux.merge(IntStream.range(0, 4)
+                        .mapToObj(_ -> hedger.hedge("test", Mono::<String>never))
+                        .toList()))
+                .expectSubscription()
+                .thenAwait(MIN_DELAY.multipliedBy(20))
+                .then(() -> assertEquals(2.0, counter("composite.hedge.fired")))
+                .thenCancel()
+                .verify(TIMEOUT);
+    }
+
+    @Test
+    void disabledHedgingCallsOnce() {
+        RequestHedger hedger = new RequestHedger(false, 0.95, MIN_DELAY, 1.0, meterRegistry);
+
+        assertEquals("slow", hedger.hedge("test", () -> callWith("slow").delayElement(Duration.ofMillis(100))).block(TIMEOUT));
+        assertEquals(1, calls.get());
+    }
+
+    // The first call is slow, the hedged one answers right away
+    private Mono<String> slowThenFastCall() {
+        return calls.get() == 0
+                ? callWith("primary").delayElement(Duration.ofMillis(500))
+                : callWith("hedged");
+    }
+
+    private Mono<String> callWith(String value) {
+        calls.incrementAndGet();
+        return Mono.just(value);
+    }
+
+    private double counter(String name) {
+        return meterRegistry.get(name).tag("call", "test").counter().count();
+    }
+}
@@ -1,9 +1,15 @@
 package shop.microservices.core.product.persistence;
 
+import org.springframework.data.r2dbc.repository.Query;
 import org.springframework.data.r2dbc.repository.R2dbcRepository;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 public interface ProductRepository extends R2dbcRepository<ProductEntity, Integer> {
 
     Mono<ProductEntity> findByProductId(int productId);
+
+    // Keyset pagination, served by the unique index on product_id
+    @Query("SELECT * FROM products WHERE product_id > :after ORDER BY product_id LIMIT :limit")
+    Flux<ProductEntity> findPageAfter(int after, int limit);
 }
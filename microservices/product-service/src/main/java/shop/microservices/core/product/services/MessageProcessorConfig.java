@@ -5,12 +5,20 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.messaging.Message;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 import shop.api.core.product.Product;
 import shop.api.core.product.ProductService;
 import shop.api.event.Event;
 import shop.api.exceptions.EventProcessingException;
+import shop.util.messaging.EventDeduplicator;
+import shop.util.messaging.EventMetrics;
+import shop.util.messaging.ReactiveMessageProcessors;
 
+import java.util.List;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
 @Configuration
 public class MessageProcessorConfig {
@@ -18,39 +26,78 @@ public class MessageProcessorConfig {
     private static final Logger LOG = LoggerFactory.getLogger(MessageProcessorConfig.class);
 
     private final ProductService productService;
+    private final ProductBulkWriter bulkWriter;
+    private final ReactiveMessageProcessors processors;
+    private final EventDeduplicator deduplicator;
+    private final EventMetrics metrics;
 
     @Autowired
-    public MessageProcessorConfig(ProductService productService) {
+    public MessageProcessorConfig(ProductService productService, ProductBulkWriter bulkWriter, ReactiveMessageProcessors processors,
+                                  EventDeduplicator deduplicator, EventMetrics metrics) {
         this.productService = productService;
+        this.bulkWriter = bulkWriter;
+        this.processors = processors;
+        this.deduplicator = deduplicator;
+        this.metrics = metrics;
     }
 
+    /**
+     * Processes one event at a time on the listener thread, waiting for it to be processed.
+     */
     @Bean
     public Consumer<Event<Integer, Product>> messageProcessor() {
-        return event -> {
-            LOG.info("Process message created at {}...", event.getEventCreatedAt());
+        return event -> processEvent(event).block();
+    }
 
-            switch (event.getEventType()) {
+    /**
+     * Processes events on parallel lanes by productId, keeping the order of the events of each product, without
+     * waiting on the listener thread. Each message is acked once it is processed.
+     */
+    @Bean
+    public Function<Flux<Message<Event<Integer, Product>>>, Mono<Void>> reactiveMessageProcessor() {
+        return processors.create(Event::getKey, this::processEvent);
+    }
+
+    /**
+     * Processes the events of one poll in batch mode, consecutive CREATE events are written with one bulk insert.
+     */
+    @Bean
+    public Consumer<Message<List<Event<Integer, Product>>>> batchMessageProcessor() {
+        return processors.createBatch(
+                event -> event.getEventType() == Event.Type.CREATE,
+                events -> deduplicator.writeOnce(events, notProcessed -> metrics.recordBulk(notProcessed, this::createProducts)),
+                this::processEvent);
+    }
 
-                case CREATE:
+    private Mono<List<Event<Integer, Product>>> createProducts(List<Event<Integer, Product>> events) {
+        LOG.info("Create {} products in one batch", events.size());
+        return bulkWriter.insert(events.stream().map(Event::getData).toList())
+                .map(failed -> failed.stream().map(events::get).toList());
+    }
+
+    private Mono<Void> processEvent(Event<Integer, Product> event) {
+        return deduplicator.processOnce(event, () -> metrics.record(event, Mono.defer(() -> {
+            LOG.info("Process message created at {}...", event.getEventCreatedAt());
+
+            return switch (event.getEventType()) {
+                case CREATE -> {
                     Product product = event.getData();
                     LOG.info("Create product with ID: {}", product.productId());
-                    productService.createProduct(product).block();
-                    break;
+                    yield productService.createProduct(product).then();
+                }
 
-                case DELETE:
+                case DELETE -> {
                     int productId = event.getKey();
                     LOG.info("Delete product with ProductID: {}", productId);
-                    productService.deleteProduct(productId).block();
-                    break;
+                    yield productService.deleteProduct(productId);
+                }
 
-                default:
+                default -> {
                     String errorMessage = "Incorrect event type: " + event.getEventType() + ", expected a CREATE or DELETE event";
                     LOG.warn(errorMessage);
-                    throw new EventProcessingException(errorMessage);
-            }
-
-            LOG.info("Message processing done!");
-
-        };
+                    yield Mono.error(new EventProcessingException(errorMessage));
+                }
+            };
+        }).doOnSuccess(_ -> LOG.info("Message processing done!"))));
     }
 }
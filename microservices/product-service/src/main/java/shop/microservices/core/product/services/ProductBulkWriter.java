@@ -0,0 +1,93 @@
+package shop.microservices.core.product.services;
+
+import io.r2dbc.spi.Result;
+import io.r2dbc.spi.Statement;
+import jakarta.validation.Validator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.reactive.TransactionalOperator;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import shop.api.core.product.Product;
+import shop.microservices.core.product.persistence.ProductEntity;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Writes many products at once, used when events are consumed in batches.
+ */
+@Component
+public class ProductBulkWriter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ProductBulkWriter.class);
+
+    private static final String INSERT_PRODUCT = "INSERT INTO products (version, product_id, name, weight) VALUES ($1, $2, $3, $4)";
+
+    private final DatabaseClient databaseClient;
+    private final TransactionalOperator transactionalOperator;
+    private final ProductMapper mapper;
+    private final Validator validator;
+
+    @Autowired
+    public ProductBulkWriter(
+            DatabaseClient databaseClient,
+            TransactionalOperator transactionalOperator,
+            ProductMapper mapper,
+            Validator validator
+    ) {
+        this.databaseClient = databaseClient;
+        this.transactionalOperator = transactionalOperator;
+        this.mapper = mapper;
+        this.validator = validator;
+    }
+
+    /**
+     * Inserts the valid products with one batched INSERT statement, in one transaction.
+     * Returns the indexes of the products that were not inserted: the invalid ones, or all of them if the insert failed.
+     */
+    public Mono<List<Integer>> insert(List<Product> products) {
+        List<Integer> notInserted = new ArrayList<>();
+        List<ProductEntity> entities = new ArrayList<>();
+        for (int i = 0; i < products.size(); i++) {
+            ProductEntity entity = mapper.apiToEntity(products.get(i));
+            if (entity.getProductId() < 1 || !validator.validate(entity).isEmpty()) {
+                notInserted.add(i);
+            } else {
+                entities.add(entity);
+            }
+        }
+
+        if (entities.isEmpty()) {
+            return Mono.just(notInserted);
+        }
+
+        return databaseClient.inConnectionMany(connection -> {
+                    Statement statement = connection.createStatement(INSERT_PRODUCT);
+                    for (int i = 0; i < entities.size(); i++) {
+                        if (i > 0) {
+                            statement.add();
+                        }
+                        ProductEntity entity = entities.get(i);
+                        statement.bind(0, 0)
+                                .bind(1, entity.getProductId())
+                                .bind(2, entity.getName())
+                                .bind(3, entity.getWeight());
+                    }
+                    return Flux.from(statement.execute()).flatMap(Result::getRowsUpdated);
+                })
+                .as(transactionalOperator::transactional)
+                .then(Mono.fromSupplier(() -> {
+                    LOG.debug("Inserted {} products in one batch", entities.size());
+                    return notInserted;
+                }))
+                .onErrorResume(ex -> {
+                    LOG.warn("Failed to insert a batch of {} products: {}", entities.size(), ex.toString());
+                    return Mono.just(IntStream.range(0, products.size()).boxed().toList());
+                });
+    }
+}
@@ -2,11 +2,13 @@ package shop.microservices.core.product.services;
 
 import jakarta.validation.Validator;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.web.bind.annotation.RestController;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import shop.api.core.product.Product;
+import shop.api.core.product.ProductPage;
 import shop.api.core.product.ProductService;
 import shop.api.exceptions.InvalidInputException;
 import shop.api.exceptions.NotFoundException;
@@ -25,15 +27,19 @@ public class ProductServiceImpl implements ProductService {
 
     private final Validator validator;
 
+    private final int maxPageSize;
+
     @Autowired
     public ProductServiceImpl(ProductRepository repository,
                               ProductMapper mapper,
                               ServiceUtil serviceUtil,
-                              Validator validator) {
+                              Validator validator,
+                              @Value("${app.maxPageSize:1000}") int maxPageSize) {
         this.repository = repository;
         this.mapper = mapper;
         this.serviceUtil = serviceUtil;
         this.validator = validator;
+        this.maxPageSize = maxPageSize;
     }
 
     @Override
@@ -77,6 +83,26 @@ public class ProductServiceImpl implements ProductService {
                 .map(e -> e.withServiceAddress(serviceUtil.getServiceAddress()));
     }
 
+    @Override
+    public Mono<ProductPage> getProducts(int after, int limit) {
+        if (after < 0) {
+            throw new InvalidInputException("Invalid after: " + after);
+        }
+
+        if (limit < 1 || limit > maxPageSize) {
+            throw new InvalidInputException("Invalid limit: " + limit + ", must be between 1 and " + maxPageSize);
+        }
+
+        // Read one extra row to find out if there is a next page
+        return repository.findPageAfter(after, limit + 1)
+                .map(mapper::entityToApi)
+                .map(e -> e.withServiceAddress(serviceUtil.getServiceAddress()))
+                .collectList()
+                .map(products -> products.size() > limit
+                        ? new ProductPage(products.subList(0, limit), products.get(limit - 1).productId())
+                        : new ProductPage(products, null));
+    }
+
     @Override
     public Mono<Void> deleteProduct(int productId) {
         if (productId < 1) {
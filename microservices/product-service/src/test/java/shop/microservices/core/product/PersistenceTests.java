@@ -9,6 +9,7 @@ import org.springframework.dao.OptimisticLockingFailureException;
 import shop.microservices.core.product.persistence.ProductEntity;
 import shop.microservices.core.product.persistence.ProductRepository;
 
+import java.util.List;
 import java.util.Optional;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -67,6 +68,17 @@ class PersistenceTests extends PostgresTestBase {
         assertEqualsProduct(savedEntity, entity.get());
     }
 
+    @Test
+    void findPageAfter() {
+        repository.save(new ProductEntity(3, "n", 3)).block();
+        repository.save(new ProductEntity(2, "n", 2)).block();
+
+        List<Integer> productIds = repository.findPageAfter(1, 2).map(ProductEntity::getProductId).collectList().block();
+        assertEquals(List.of(2, 3), productIds);
+
+        assertEquals(0, repository.findPageAfter(3, 2).count().block());
+    }
+
     @Test
     void duplicateError() {
         assertThrows(DuplicateKeyException.class, () -> {
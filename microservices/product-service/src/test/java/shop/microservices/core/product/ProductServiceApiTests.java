@@ -6,12 +6,15 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.http.HttpStatus;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
 import org.springframework.test.web.reactive.server.WebTestClient;
 import shop.api.core.product.Product;
 import shop.api.event.Event;
 import shop.api.exceptions.InvalidInputException;
 import shop.microservices.core.product.persistence.ProductRepository;
 
+import java.util.List;
 import java.util.function.Consumer;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -35,6 +38,10 @@ class ProductServiceApiTests extends PostgresTestBase {
     @Qualifier("messageProcessor")
     private Consumer<Event<Integer, Product>> messageProcessor;
 
+    @Autowired
+    @Qualifier("batchMessageProcessor")
+    private Consumer<Message<List<Event<Integer, Product>>>> batchMessageProcessor;
+
     @BeforeEach
     void setupDb() {
         repository.deleteAll().block();
@@ -73,6 +80,33 @@ class ProductServiceApiTests extends PostgresTestBase {
         assertEquals("Duplicate key, Product Id: " + productId, thrown.getMessage());
     }
 
+    @Test
+    void redeliveredEventIsSkipped() {
+        int productId = 1;
+        Event<Integer, Product> event = createProductEvent(productId);
+
+        messageProcessor.accept(event);
+
+        // A redelivery of the same event isn't a duplicate product
+        messageProcessor.accept(event);
+        batchMessageProcessor.accept(MessageBuilder.withPayload(List.of(event)).build());
+
+        assertEquals(1, (long) repository.count().block());
+    }
+
+    @Test
+    void createProductsInOneBatch() {
+        sendCreateProductEvent(1);
+
+        // The duplicate product 1 fails the bulk insert, the other products are then created one by one
+        batchMessageProcessor.accept(MessageBuilder.withPayload(List.of(
+                createProductEvent(2), createProductEvent(1), createProductEvent(3))).build());
+
+        assertEquals(3, (long) repository.count().block());
+        assertNotNull(repository.findByProductId(2).block());
+        assertNotNull(repository.findByProductId(3).block());
+    }
+
     @Test
     void deleteProduct() {
         int productId = 1;
@@ -86,6 +120,33 @@ class ProductServiceApiTests extends PostgresTestBase {
         sendDeleteProductEvent(productId);
     }
 
+    @Test
+    void getProductsPageByPage() {
+        for (int productId = 1; productId <= 5; productId++) {
+            sendCreateProductEvent(productId);
+        }
+
+        getAndVerifyProduct("?limit=2", OK)
+                .jsonPath("$.products.length()").isEqualTo(2)
+                .jsonPath("$.products[0].productId").isEqualTo(1)
+                .jsonPath("$.nextCursor").isEqualTo(2);
+
+        getAndVerifyProduct("?after=2&limit=2", OK)
+                .jsonPath("$.products[0].productId").isEqualTo(3)
+                .jsonPath("$.nextCursor").isEqualTo(4);
+
+        getAndVerifyProduct("?after=4&limit=2", OK)
+                .jsonPath("$.products.length()").isEqualTo(1)
+                .jsonPath("$.products[0].productId").isEqualTo(5)
+                .jsonPath("$.nextCursor").doesNotExist();
+    }
+
+    @Test
+    void getProductsInvalidLimit() {
+        getAndVerifyProduct("?limit=0", UNPROCESSABLE_ENTITY)
+                .jsonPath("$.message").isEqualTo("Invalid limit: 0, must be between 1 and 1000");
+    }
+
     @Test
     void getProductInvalidParameterString() {
         getAndVerifyProduct("/no-integer", BAD_REQUEST);
@@ -123,9 +184,12 @@ class ProductServiceApiTests extends PostgresTestBase {
     }
 
     private void sendCreateProductEvent(int productId) {
+        messageProcessor.accept(createProductEvent(productId));
+    }
+
+    private Event<Integer, Product> createProductEvent(int productId) {
         Product product = new Product(productId, "Name " + productId, productId, "SA");
-        Event<Integer, Product> event = new Event<>(CREATE, productId, product);
-        messageProcessor.accept(event);
+        return new Event<>(CREATE, productId, product);
     }
 
     private void sendDeleteProductEvent(int productId) {
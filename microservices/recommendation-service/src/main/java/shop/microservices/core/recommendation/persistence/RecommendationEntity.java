@@ -9,6 +9,8 @@ import org.springframework.data.annotation.Version;
 import org.springframework.data.mongodb.core.index.CompoundIndex;
 import org.springframework.data.mongodb.core.mapping.Document;
 
+import java.util.Objects;
+
 @Document(collection = "recommendations")
 @CompoundIndex(name = "prod-rec-id", unique = true, def = "{'productId': 1, 'recommendationId' : 1}")
 public class RecommendationEntity {
@@ -41,6 +43,17 @@ public class RecommendationEntity {
         this.content = content;
     }
 
+    /**
+     * Tells if the other entity is the same recommendation, i.e. has the same key and content, ignoring id and version.
+     */
+    public boolean hasSameContent(RecommendationEntity other) {
+        return productId == other.productId
+                && recommendationId == other.recommendationId
+                && rating == other.rating
+                && Objects.equals(author, other.author)
+                && Objects.equals(content, other.content);
+    }
+
     public String getId() {
         return id;
     }
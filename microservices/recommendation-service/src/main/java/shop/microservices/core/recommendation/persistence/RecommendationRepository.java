@@ -2,7 +2,14 @@ package shop.microservices.core.recommendation.persistence;
 
 import org.springframework.data.repository.reactive.ReactiveCrudRepository;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Collection;
 
 public interface RecommendationRepository extends ReactiveCrudRepository<RecommendationEntity, String> {
     Flux<RecommendationEntity> findByProductId(int productId);
+
+    Mono<RecommendationEntity> findByProductIdAndRecommendationId(int productId, int recommendationId);
+
+    Flux<RecommendationEntity> findByProductIdIn(Collection<Integer> productIds);
 }
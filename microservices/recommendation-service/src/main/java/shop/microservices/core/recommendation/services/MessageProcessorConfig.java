@@ -5,12 +5,21 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.messaging.Message;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 import shop.api.core.recommendation.Recommendation;
 import shop.api.core.recommendation.RecommendationService;
 import shop.api.event.Event;
 import shop.api.exceptions.EventProcessingException;
+import shop.util.messaging.EventDeduplicator;
+import shop.util.messaging.EventMetrics;
+import shop.util.messaging.ReactiveMessageProcessors;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
 @Configuration
 public class MessageProcessorConfig {
@@ -18,37 +27,96 @@ public class MessageProcessorConfig {
     private static final Logger LOG = LoggerFactory.getLogger(MessageProcessorConfig.class);
 
     private final RecommendationService recommendationService;
+    private final RecommendationBulkWriter bulkWriter;
+    private final ReactiveMessageProcessors processors;
+    private final EventDeduplicator deduplicator;
+    private final EventMetrics metrics;
 
     @Autowired
-    public MessageProcessorConfig(RecommendationService recommendationService) {
+    public MessageProcessorConfig(RecommendationService recommendationService, RecommendationBulkWriter bulkWriter, ReactiveMessageProcessors processors,
+                                  EventDeduplicator deduplicator, EventMetrics metrics) {
         this.recommendationService = recommendationService;
+        this.bulkWriter = bulkWriter;
+        this.processors = processors;
+        this.deduplicator = deduplicator;
+        this.metrics = metrics;
     }
 
+    /**
+     * Processes one event at a time on the listener thread, waiting for it to be processed.
+     */
     @Bean
     public Consumer<Event<Integer, Recommendation>> messageProcessor() {
-        return event -> {
+        return event -> processEvent(event).block();
+    }
+
+    /**
+     * Processes events on parallel lanes by productId, keeping the order of the events of each product, without
+     * waiting on the listener thread. Each message is acked once it is processed.
+     */
+    @Bean
+    public Function<Flux<Message<Event<Integer, Recommendation>>>, Mono<Void>> reactiveMessageProcessor() {
+        return processors.create(Event::getKey, this::processEvent);
+    }
+
+    /**
+     * Processes the events of one poll in batch mode, consecutive CREATE and CREATE_BATCH events are written with one bulk insert.
+     */
+    @Bean
+    public Consumer<Message<List<Event<Integer, Recommendation>>>> batchMessageProcessor() {
+        return processors.createBatch(
+                event -> event.getEventType() == Event.Type.CREATE || event.getEventType() == Event.Type.CREATE_BATCH,
+                events -> deduplicator.writeOnce(events, notProcessed -> metrics.recordBulk(notProcessed, this::createRecommendations)),
+                this::processEvent);
+    }
+
+    // Returns the events with at least one recommendation that could not be inserted. They are processed again one by one,
+    // which skips the recommendations of the event that the bulk write did insert
+    private Mono<List<Event<Integer, Recommendation>>> createRecommendations(List<Event<Integer, Recommendation>> events) {
+        List<Recommendation> recommendations = new ArrayList<>();
+        List<Event<Integer, Recommendation>> owners = new ArrayList<>();
+        for (Event<Integer, Recommendation> event : events) {
+            List<Recommendation> created = event.getEventType() == Event.Type.CREATE_BATCH ? event.getBatch() : List.of(event.getData());
+            created.forEach(recommendation -> {
+                recommendations.add(recommendation);
+                owners.add(event);
+            });
+        }
+
+        LOG.info("Create {} recommendations from {} events in one batch", recommendations.size(), events.size());
+        return bulkWriter.insert(recommendations)
+                .map(failed -> failed.stream().map(owners::get).distinct().toList());
+    }
+
+    private Mono<Void> processEvent(Event<Integer, Recommendation> event) {
+        return deduplicator.processOnce(event, () -> metrics.record(event, Mono.defer(() -> {
             LOG.info("Process message created at {}...", event.getEventCreatedAt());
 
-            switch (event.getEventType()) {
-                case CREATE:
+            return switch (event.getEventType()) {
+                case CREATE -> {
                     Recommendation recommendation = event.getData();
                     LOG.info("Create recommendation with ID: {}/{}", recommendation.productId(), recommendation.recommendationId());
-                    recommendationService.createRecommendation(recommendation).block();
-                    break;
+                    yield recommendationService.createRecommendation(recommendation).then();
+                }
+
+                case CREATE_BATCH -> {
+                    List<Recommendation> recommendations = event.getBatch();
+                    LOG.info("Create {} recommendations with ProductID: {}", recommendations.size(), event.getKey());
+                    yield recommendationService.createRecommendations(recommendations).then();
+                }
 
-                case DELETE:
+                case DELETE -> {
                     int productId = event.getKey();
                     LOG.info("Delete recommendations with ProductID: {}", productId);
-                    recommendationService.deleteRecommendations(productId).block();
-                    break;
+                    yield recommendationService.deleteRecommendations(productId);
+                }
 
-                default:
-                    String errorMessage = "Incorrect event type: " + event.getEventType() + ", expected a CREATE or DELETE event";
+                default -> {
+                    String errorMessage = "Incorrect event type: " + event.getEventType() + ", expected a CREATE, CREATE_BATCH or DELETE event";
                     LOG.warn(errorMessage);
-                    throw new EventProcessingException(errorMessage);
-            }
-
-            LOG.info("Message processing done!");
-        };
+                    yield Mono.error(new EventProcessingException(errorMessage));
+                }
+            };
+        }).doOnSuccess(_ -> LOG.info("Message processing done!"))));
     }
 }
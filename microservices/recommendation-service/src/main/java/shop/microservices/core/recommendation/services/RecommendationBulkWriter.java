@@ -0,0 +1,163 @@
+package shop.microservices.core.recommendation.services;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import jakarta.validation.ConstraintViolation;
+import jakarta.validation.ConstraintViolationException;
+import jakarta.validation.Validator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.BulkOperations.BulkMode;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import shop.api.core.recommendation.Recommendation;
+import shop.api.exceptions.InvalidInputException;
+import shop.microservices.core.recommendation.persistence.RecommendationEntity;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+/**
+ * Writes many recommendations at once, used when events are consumed in batches and for batch creates.
+ * <p>
+ * A recommendation that is already stored with the same content counts as inserted, so writing the same recommendations
+ * again, e.g. when a message is redelivered after a partial write, is idempotent.
+ */
+@Component
+public class RecommendationBulkWriter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RecommendationBulkWriter.class);
+
+    private final ReactiveMongoTemplate mongoTemplate;
+    private final RecommendationMapper mapper;
+    private final Validator validator;
+
+    @Autowired
+    public RecommendationBulkWriter(ReactiveMongoTemplate mongoTemplate, RecommendationMapper mapper, Validator validator) {
+        this.mongoTemplate = mongoTemplate;
+        this.mapper = mapper;
+        this.validator = validator;
+    }
+
+    /**
+     * Inserts the valid recommendations with one unordered bulk write, i.e. a failing insert doesn't stop the others.
+     * Returns the indexes of the recommendations that were not inserted: the invalid ones and the ones that failed.
+     */
+    public Mono<List<Integer>> insert(List<Recommendation> recommendations) {
+        List<Integer> notInserted = new ArrayList<>();
+        List<Integer> indexes = new ArrayList<>();
+        List<RecommendationEntity> entities = new ArrayList<>();
+        for (int i = 0; i < recommendations.size(); i++) {
+            RecommendationEntity entity = mapper.apiToEntity(recommendations.get(i));
+            if (entity.getProductId() < 1 || !validator.validate(entity).isEmpty()) {
+                notInserted.add(i);
+            } else {
+                indexes.add(i);
+                entities.add(entity);
+            }
+        }
+
+        return write(entities)
+                .onErrorResume(ex -> {
+                    // Without write errors none of the inserts can be trusted, the ones that were written are skipped when retried
+                    LOG.warn("Failed to insert {} recommendations in a bulk write: {}", entities.size(), ex.toString());
+                    return Mono.just(IntStream.range(0, entities.size()).boxed().toList());
+                })
+                .map(failed -> {
+                    // The failed positions are positions in the bulk write, map them back to the recommendations
+                    List<Integer> all = new ArrayList<>(notInserted);
+                    failed.forEach(position -> all.add(indexes.get(position)));
+                    all.sort(null);
+                    return all;
+                });
+    }
+
+    /**
+     * Inserts all the recommendations with one unordered bulk write. Fails with an InvalidInputException if any of them is
+     * stored with another content, the others are inserted anyway.
+     */
+    public Flux<Recommendation> insertAll(List<Recommendation> recommendations) {
+        List<RecommendationEntity> entities = recommendations.stream().map(mapper::apiToEntity).toList();
+
+        Set<ConstraintViolation<RecommendationEntity>> violations = entities.stream()
+                .flatMap(entity -> validator.validate(entity).stream())
+                .collect(Collectors.toSet());
+        if (!violations.isEmpty()) {
+            return Flux.error(new ConstraintViolationException(violations));
+        }
+
+        return write(entities).flatMapMany(failed -> failed.isEmpty()
+                ? Flux.fromIterable(entities).map(mapper::entityToApi)
+                : Flux.error(new InvalidInputException("Duplicate key in batch of " + entities.size() + " recommendations, Product Id/Recommendation Id: "
+                        + failed.stream().map(entities::get).map(e -> e.getProductId() + "/" + e.getRecommendationId()).toList())));
+    }
+
+    // Returns the positions of the entities that were not inserted, errors other than write errors are passed on
+    private Mono<List<Integer>> write(List<RecommendationEntity> entities) {
+        if (entities.isEmpty()) {
+            return Mono.just(List.of());
+        }
+
+        return mongoTemplate.bulkOps(BulkMode.UNORDERED, RecommendationEntity.class)
+                .insert(entities)
+                .execute()
+                .map(result -> {
+                    LOG.debug("Inserted {} recommendations in one bulk write", result.getInsertedCount());
+                    return List.<Integer>of();
+                })
+                .onErrorResume(ex -> bulkWriteException(ex) != null, ex -> {
+                    List<BulkWriteError> errors = bulkWriteException(ex).getWriteErrors();
+                    List<Integer> duplicates = errors.stream()
+                            .filter(error -> ErrorCategory.fromErrorCode(error.getCode()) == ErrorCategory.DUPLICATE_KEY)
+                            .map(BulkWriteError::getIndex)
+                            .toList();
+
+                    return storedWithSameContent(entities, duplicates).map(stored -> {
+                        List<Integer> failed = errors.stream().map(BulkWriteError::getIndex).filter(i -> !stored.contains(i)).toList();
+                        LOG.debug("{} of {} recommendations in a bulk write were already stored", stored.size(), entities.size());
+                        if (!failed.isEmpty()) {
+                            LOG.warn("Failed to insert {} of {} recommendations in a bulk write: {}", failed.size(), entities.size(), ex.toString());
+                        }
+                        return failed;
+                    });
+                });
+    }
+
+    // Returns the positions of the entities that are already stored with the same content
+    private Mono<Set<Integer>> storedWithSameContent(List<RecommendationEntity> entities, List<Integer> positions) {
+        if (positions.isEmpty()) {
+            return Mono.just(Set.of());
+        }
+
+        Criteria[] keys = positions.stream()
+                .map(entities::get)
+                .map(e -> where("productId").is(e.getProductId()).and("recommendationId").is(e.getRecommendationId()))
+                .toArray(Criteria[]::new);
+
+        return mongoTemplate.find(query(new Criteria().orOperator(keys)), RecommendationEntity.class)
+                .collectList()
+                .map(stored -> positions.stream()
+                        .filter(position -> stored.stream().anyMatch(s -> s.hasSameContent(entities.get(position))))
+                        .collect(Collectors.toSet()));
+    }
+
+    private static MongoBulkWriteException bulkWriteException(Throwable ex) {
+        for (Throwable cause = ex; cause != null; cause = cause.getCause()) {
+            if (cause instanceof MongoBulkWriteException bulkWriteException) {
+                return bulkWriteException;
+            }
+        }
+        return null;
+    }
+}
@@ -12,6 +12,8 @@ import shop.microservices.core.recommendation.persistence.RecommendationEntity;
 import shop.microservices.core.recommendation.persistence.RecommendationRepository;
 import shop.util.http.ServiceUtil;
 
+import java.util.List;
+
 @RestController
 public class RecommendationServiceImpl implements RecommendationService {
 
@@ -19,12 +21,15 @@ public class RecommendationServiceImpl implements RecommendationService {
 
     private final RecommendationMapper mapper;
 
+    private final RecommendationBulkWriter bulkWriter;
+
     private final ServiceUtil serviceUtil;
 
     @Autowired
-    public RecommendationServiceImpl(RecommendationRepository repository, RecommendationMapper mapper, ServiceUtil serviceUtil) {
+    public RecommendationServiceImpl(RecommendationRepository repository, RecommendationMapper mapper, RecommendationBulkWriter bulkWriter, ServiceUtil serviceUtil) {
         this.repository = repository;
         this.mapper = mapper;
+        this.bulkWriter = bulkWriter;
         this.serviceUtil = serviceUtil;
     }
 
@@ -36,15 +41,31 @@ public class RecommendationServiceImpl implements RecommendationService {
 
         RecommendationEntity entity = mapper.apiToEntity(body);
 
+        // A recommendation that is already stored with the same content is not an error, so that a redelivered event, e.g. one
+        // retried after a bulk write that did insert it, is processed again without ending up in the DLQ
         return repository.save(entity)
-                .onErrorMap(
+                .onErrorResume(
                         DuplicateKeyException.class,
-                        _ ->
-                                new InvalidInputException(
-                                        "Duplicate key, Product Id: " + body.productId() + ", Recommendation Id:" + body.recommendationId()))
+                        _ -> repository.findByProductIdAndRecommendationId(body.productId(), body.recommendationId())
+                                .filter(stored -> stored.hasSameContent(entity))
+                                .switchIfEmpty(Mono.error(new InvalidInputException(
+                                        "Duplicate key, Product Id: " + body.productId() + ", Recommendation Id:" + body.recommendationId()))))
                 .map(mapper::entityToApi);
     }
 
+    @Override
+    public Flux<Recommendation> createRecommendations(List<Recommendation> body) {
+        body.forEach(r -> {
+            if (r.productId() < 1) {
+                throw new InvalidInputException("Invalid productId: " + r.productId());
+            }
+        });
+
+        // An unordered bulk write that skips recommendations already stored with the same content, so a redelivered
+        // batch that was partially written before doesn't fail on its own recommendations
+        return bulkWriter.insertAll(body);
+    }
+
     @Override
     public Flux<Recommendation> getRecommendations(int productId) {
         if (productId < 1) {
@@ -56,6 +77,19 @@ public class RecommendationServiceImpl implements RecommendationService {
                 .map(e -> e.withServiceAddress(serviceUtil.getServiceAddress()));
     }
 
+    @Override
+    public Flux<Recommendation> getRecommendationsByProductIds(List<Integer> productIds) {
+        for (int productId : productIds) {
+            if (productId < 1) {
+                throw new InvalidInputException("Invalid productId: " + productId);
+            }
+        }
+
+        return repository.findByProductIdIn(productIds)
+                .map(mapper::entityToApi)
+                .map(e -> e.withServiceAddress(serviceUtil.getServiceAddress()));
+    }
+
     @Override
     public Mono<Void> deleteRecommendations(int productId) {
         if (productId < 1) {
@@ -6,12 +6,17 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
 import org.springframework.test.web.reactive.server.WebTestClient;
 import shop.api.core.recommendation.Recommendation;
 import shop.api.event.Event;
 import shop.api.exceptions.InvalidInputException;
 import shop.microservices.core.recommendation.persistence.RecommendationRepository;
 
+import java.util.Arrays;
+import java.util.List;
 import java.util.function.Consumer;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
@@ -26,6 +31,8 @@ import static shop.api.event.Event.Type.DELETE;
 @SpringBootTest(webEnvironment = RANDOM_PORT, properties = {"eureka.client.enabled=false"})
 class RecommendationServiceApiTests extends MongoDbTestBase {
 
+    private static final MediaType APPLICATION_SMILE = MediaType.valueOf("application/x-jackson-smile");
+
     private static final String RECOMMENDATION_CONTENT = "Lorem ipsum dolor sit amet, consetetur sadipscingw";
 
     @Autowired
@@ -38,6 +45,10 @@ class RecommendationServiceApiTests extends MongoDbTestBase {
     @Qualifier("messageProcessor")
     private Consumer<Event<Integer, Recommendation>> messageProcessor;
 
+    @Autowired
+    @Qualifier("batchMessageProcessor")
+    private Consumer<Message<List<Event<Integer, Recommendation>>>> batchMessageProcessor;
+
     @BeforeEach
     void setupDb() {
         repository.deleteAll().block();
@@ -59,6 +70,40 @@ class RecommendationServiceApiTests extends MongoDbTestBase {
                 .jsonPath("$[2].recommendationId").isEqualTo(3);
     }
 
+    @Test
+    void getRecommendationsByProductIds() {
+        sendCreateRecommendationEvent(1, 1);
+        sendCreateRecommendationEvent(1, 2);
+        sendCreateRecommendationEvent(2, 1);
+        sendCreateRecommendationEvent(3, 1);
+
+        getAndVerifyRecommendationsByProductId("?productIds=1,2", OK)
+                .jsonPath("$.length()").isEqualTo(3)
+                .jsonPath("$[?(@.productId == 3)]").doesNotExist();
+    }
+
+    @Test
+    void getRecommendationsAsSmile() {
+        sendCreateRecommendationEvent(1, 1);
+        sendCreateRecommendationEvent(1, 2);
+
+        client.get()
+                .uri("/recommendation?productId=1")
+                .accept(APPLICATION_SMILE)
+                .exchange()
+                .expectStatus().isEqualTo(OK)
+                .expectHeader().contentType(APPLICATION_SMILE)
+                .expectBodyList(Recommendation.class)
+                .hasSize(2);
+    }
+
+    @Test
+    void getRecommendationsByProductIdsInvalidParameterNegativeValue() {
+        getAndVerifyRecommendationsByProductId("?productIds=1,-1", UNPROCESSABLE_ENTITY)
+                .jsonPath("$.path").isEqualTo("/recommendation")
+                .jsonPath("$.message").isEqualTo("Invalid productId: -1");
+    }
+
     @Test
     void duplicateError() {
         int productId = 1;
@@ -68,15 +113,94 @@ class RecommendationServiceApiTests extends MongoDbTestBase {
 
         assertEquals(1, (long) repository.count().block());
 
+        // A redelivered event is processed again without errors
+        sendCreateRecommendationEvent(productId, recommendationId);
+        assertEquals(1, (long) repository.count().block());
+
         InvalidInputException thrown = assertThrows(
                 InvalidInputException.class,
-                () -> sendCreateRecommendationEvent(productId, recommendationId),
+                () -> messageProcessor.accept(new Event<>(CREATE, productId, otherRecommendation(productId, recommendationId))),
                 "Expected a InvalidInputException here!");
         assertEquals("Duplicate key, Product Id: 1, Recommendation Id:1", thrown.getMessage());
 
         assertEquals(1, (long) repository.count().block());
     }
 
+    @Test
+    void createRecommendationsInOneBatch() {
+
+        int productId = 1;
+
+        sendCreateRecommendationsEvent(productId, 1, 2, 3);
+        assertEquals(3, (long) repository.findByProductId(productId).count().block());
+
+        // A redelivered batch is written again without errors
+        sendCreateRecommendationsEvent(productId, 1, 2, 3);
+        assertEquals(3, (long) repository.findByProductId(productId).count().block());
+
+        InvalidInputException thrown = assertThrows(
+                InvalidInputException.class,
+                () -> messageProcessor.accept(Event.createBatch(productId, List.of(otherRecommendation(productId, 1)))));
+        assertEquals("Duplicate key in batch of 1 recommendations, Product Id/Recommendation Id: [1/1]", thrown.getMessage());
+        assertEquals(3, (long) repository.findByProductId(productId).count().block());
+    }
+
+    @Test
+    void createRecommendationsWithStoredDuplicateInTheMiddle() {
+        int productId = 1;
+
+        sendCreateRecommendationEvent(productId, 2);
+
+        // The stored recommendation has the same content, the ones around it are inserted
+        sendCreateRecommendationsEvent(productId, 1, 2, 3);
+        assertEquals(3, (long) repository.findByProductId(productId).count().block());
+    }
+
+    @Test
+    void createRecommendationsWithConflictingDuplicateInTheMiddle() {
+        int productId = 1;
+
+        messageProcessor.accept(new Event<>(CREATE, productId, otherRecommendation(productId, 2)));
+
+        // The unordered insert writes the recommendations around the conflicting one before the batch fails
+        assertThrows(InvalidInputException.class, () -> sendCreateRecommendationsEvent(productId, 1, 2, 3));
+        assertEquals(3, (long) repository.findByProductId(productId).count().block());
+
+        // Writing the batch again fails on the conflict only, not on the recommendations written the first time
+        InvalidInputException thrown = assertThrows(InvalidInputException.class, () -> sendCreateRecommendationsEvent(productId, 1, 2, 3));
+        assertEquals("Duplicate key in batch of 3 recommendations, Product Id/Recommendation Id: [1/2]", thrown.getMessage());
+        assertEquals("Other author", repository.findByProductId(productId).filter(r -> r.getRecommendationId() == 2).blockFirst().getAuthor());
+    }
+
+    @Test
+    void createRecommendationsFromBatchOfEvents() {
+        sendCreateRecommendationEvent(1, 1);
+
+        // The unordered bulk write inserts all recommendations, the duplicate one is already stored with the same content
+        batchMessageProcessor.accept(MessageBuilder.withPayload(List.of(
+                new Event<>(CREATE, 1, recommendation(1, 2)),
+                new Event<>(CREATE, 1, recommendation(1, 1)),
+                Event.createBatch(2, List.of(recommendation(2, 1), recommendation(2, 2))))).build());
+
+        assertEquals(2, (long) repository.findByProductId(1).count().block());
+        assertEquals(2, (long) repository.findByProductId(2).count().block());
+    }
+
+    @Test
+    void createRecommendationsFromBatchOfEventsWithConflict() {
+        messageProcessor.accept(new Event<>(CREATE, 2, otherRecommendation(2, 2)));
+
+        // The event with the conflicting recommendation is processed again on its own, which skips the recommendations
+        // the bulk write inserted and fails on the conflict only
+        batchMessageProcessor.accept(MessageBuilder.withPayload(List.of(
+                new Event<>(CREATE, 1, recommendation(1, 1)),
+                Event.createBatch(2, List.of(recommendation(2, 1), recommendation(2, 2), recommendation(2, 3))))).build());
+
+        assertEquals(1, (long) repository.findByProductId(1).count().block());
+        assertEquals(3, (long) repository.findByProductId(2).count().block());
+        assertEquals("Other author", repository.findByProductIdAndRecommendationId(2, 2).block().getAuthor());
+    }
+
     @Test
     void deleteRecommendations() {
         int productId = 1;
@@ -131,6 +255,21 @@ class RecommendationServiceApiTests extends MongoDbTestBase {
         messageProcessor.accept(event);
     }
 
+    private void sendCreateRecommendationsEvent(int productId, int... recommendationIds) {
+        List<Recommendation> recommendations = Arrays.stream(recommendationIds)
+                .mapToObj(recommendationId -> recommendation(productId, recommendationId))
+                .toList();
+        messageProcessor.accept(Event.createBatch(productId, recommendations));
+    }
+
+    private Recommendation recommendation(int productId, int recommendationId) {
+        return new Recommendation(productId, recommendationId, "Author " + recommendationId, recommendationId, RECOMMENDATION_CONTENT + recommendationId, "SA");
+    }
+
+    private Recommendation otherRecommendation(int productId, int recommendationId) {
+        return new Recommendation(productId, recommendationId, "Other author", 1, RECOMMENDATION_CONTENT + "other", "SA");
+    }
+
     private void sendDeleteRecommendationEvent(int productId) {
         Event<Integer, Recommendation> event = new Event<>(DELETE, productId, null);
         messageProcessor.accept(event);
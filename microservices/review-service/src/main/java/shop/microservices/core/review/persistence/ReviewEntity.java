@@ -11,7 +11,8 @@ import java.time.LocalDate;
 
 @Entity
 @Table(name = "reviews", indexes = {
-        @Index(name = "reviews_unique_idx", unique = true, columnList = "productId,reviewId")
+        @Index(name = "reviews_unique_idx", unique = true, columnList = "productId,reviewId"),
+        @Index(name = "reviews_product_date_idx", columnList = "productId,date DESC,reviewId DESC")
 })
 public class ReviewEntity {
 
@@ -1,12 +1,26 @@
 package shop.microservices.core.review.persistence;
 
+import org.springframework.data.domain.Limit;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.time.LocalDate;
 import java.util.List;
 
 public interface ReviewRepository extends CrudRepository<ReviewEntity, Integer> {
 
     @Transactional(readOnly = true)
     List<ReviewEntity> findByProductId(int productId);
+
+    // Keyset pagination, newest first, served by the index on (product_id, date, review_id)
+    @Transactional(readOnly = true)
+    @Query("SELECT r FROM ReviewEntity r WHERE r.productId = :productId ORDER BY r.date DESC, r.reviewId DESC")
+    List<ReviewEntity> findFirstPage(int productId, Limit limit);
+
+    @Transactional(readOnly = true)
+    @Query("SELECT r FROM ReviewEntity r WHERE r.productId = :productId"
+            + " AND (r.date < :date OR (r.date = :date AND r.reviewId < :reviewId))"
+            + " ORDER BY r.date DESC, r.reviewId DESC")
+    List<ReviewEntity> findPageAfter(int productId, LocalDate date, int reviewId, Limit limit);
 }
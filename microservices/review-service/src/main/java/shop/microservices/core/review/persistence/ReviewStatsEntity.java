@@ -0,0 +1,72 @@
+package shop.microservices.core.review.persistence;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+
+import java.time.LocalDate;
+
+/**
+ * Statistics of the reviews of a product, only written through the upsert in {@link ReviewStatsRepository}.
+ */
+@Entity
+@Table(name = "review_stats")
+public class ReviewStatsEntity {
+
+    @Id
+    private int productId;
+
+    private int reviewCount;
+    private int ratingSum;
+    @Column(name = "rating_1")
+    private int rating1;
+    @Column(name = "rating_2")
+    private int rating2;
+    @Column(name = "rating_3")
+    private int rating3;
+    @Column(name = "rating_4")
+    private int rating4;
+    @Column(name = "rating_5")
+    private int rating5;
+    private LocalDate latestDate;
+
+    public ReviewStatsEntity() {
+    }
+
+    public int getProductId() {
+        return productId;
+    }
+
+    public int getReviewCount() {
+        return reviewCount;
+    }
+
+    public int getRatingSum() {
+        return ratingSum;
+    }
+
+    public int getRating1() {
+        return rating1;
+    }
+
+    public int getRating2() {
+        return rating2;
+    }
+
+    public int getRating3() {
+        return rating3;
+    }
+
+    public int getRating4() {
+        return rating4;
+    }
+
+    public int getRating5() {
+        return rating5;
+    }
+
+    public LocalDate getLatestDate() {
+        return latestDate;
+    }
+}
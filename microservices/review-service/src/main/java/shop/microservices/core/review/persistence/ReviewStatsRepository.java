@@ -0,0 +1,47 @@
+package shop.microservices.core.review.persistence;
+
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+
+import java.time.LocalDate;
+
+public interface ReviewStatsRepository extends CrudRepository<ReviewStatsEntity, Integer> {
+
+    /**
+     * Adds the counts of new reviews to the statistics of the product, creating them for its first reviews.
+     * Must be called in the transaction that creates the reviews.
+     */
+    @Modifying
+    @Query(nativeQuery = true, value = """
+            INSERT INTO review_stats (product_id, review_count, rating_sum, rating_1, rating_2, rating_3, rating_4, rating_5, latest_date)
+            VALUES (:productId, :count, :ratingSum, :rating1, :rating2, :rating3, :rating4, :rating5, :latestDate) AS added
+            ON DUPLICATE KEY UPDATE
+                review_count = review_stats.review_count + added.review_count,
+                rating_sum = review_stats.rating_sum + added.rating_sum,
+                rating_1 = review_stats.rating_1 + added.rating_1,
+                rating_2 = review_stats.rating_2 + added.rating_2,
+                rating_3 = review_stats.rating_3 + added.rating_3,
+                rating_4 = review_stats.rating_4 + added.rating_4,
+                rating_5 = review_stats.rating_5 + added.rating_5,
+                latest_date = GREATEST(COALESCE(review_stats.latest_date, added.latest_date), COALESCE(added.latest_date, review_stats.latest_date))
+            """)
+    void add(
+            @Param("productId") int productId,
+            @Param("count") int count,
+            @Param("ratingSum") int ratingSum,
+            @Param("rating1") int rating1,
+            @Param("rating2") int rating2,
+            @Param("rating3") int rating3,
+            @Param("rating4") int rating4,
+            @Param("rating5") int rating5,
+            @Param("latestDate") LocalDate latestDate);
+
+    /**
+     * Removes the statistics of the product, must be called in the transaction that deletes all of its reviews.
+     */
+    @Modifying
+    @Query("DELETE FROM ReviewStatsEntity s WHERE s.productId = :productId")
+    void deleteByProductId(@Param("productId") int productId);
+}
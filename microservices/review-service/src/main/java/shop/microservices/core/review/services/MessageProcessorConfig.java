@@ -5,12 +5,21 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.messaging.Message;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 import shop.api.core.review.Review;
 import shop.api.core.review.ReviewService;
 import shop.api.event.Event;
 import shop.api.exceptions.EventProcessingException;
+import shop.util.messaging.EventDeduplicator;
+import shop.util.messaging.EventMetrics;
+import shop.util.messaging.ReactiveMessageProcessors;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
 @Configuration
 public class MessageProcessorConfig {
@@ -18,37 +27,95 @@ public class MessageProcessorConfig {
     private static final Logger LOG = LoggerFactory.getLogger(MessageProcessorConfig.class);
 
     private final ReviewService reviewService;
+    private final ReviewBulkWriter bulkWriter;
+    private final ReactiveMessageProcessors processors;
+    private final EventDeduplicator deduplicator;
+    private final EventMetrics metrics;
 
     @Autowired
-    public MessageProcessorConfig(ReviewService reviewService) {
+    public MessageProcessorConfig(ReviewService reviewService, ReviewBulkWriter bulkWriter, ReactiveMessageProcessors processors,
+                                  EventDeduplicator deduplicator, EventMetrics metrics) {
         this.reviewService = reviewService;
+        this.bulkWriter = bulkWriter;
+        this.processors = processors;
+        this.deduplicator = deduplicator;
+        this.metrics = metrics;
     }
 
+    /**
+     * Processes one event at a time on the listener thread, waiting for it to be processed.
+     */
     @Bean
     public Consumer<Event<Integer, Review>> messageProcessor() {
-        return event -> {
+        return event -> processEvent(event).block();
+    }
+
+    /**
+     * Processes events on parallel lanes by productId, keeping the order of the events of each product, without
+     * waiting on the listener thread. Each message is acked once it is processed.
+     */
+    @Bean
+    public Function<Flux<Message<Event<Integer, Review>>>, Mono<Void>> reactiveMessageProcessor() {
+        return processors.create(Event::getKey, this::processEvent);
+    }
+
+    /**
+     * Processes the events of one poll in batch mode, consecutive CREATE and CREATE_BATCH events are written with one bulk insert.
+     */
+    @Bean
+    public Consumer<Message<List<Event<Integer, Review>>>> batchMessageProcessor() {
+        return processors.createBatch(
+                event -> event.getEventType() == Event.Type.CREATE || event.getEventType() == Event.Type.CREATE_BATCH,
+                events -> deduplicator.writeOnce(events, notProcessed -> metrics.recordBulk(notProcessed, this::createReviews)),
+                this::processEvent);
+    }
+
+    // Returns the events with at least one review that could not be inserted
+    private Mono<List<Event<Integer, Review>>> createReviews(List<Event<Integer, Review>> events) {
+        List<Review> reviews = new ArrayList<>();
+        List<Event<Integer, Review>> owners = new ArrayList<>();
+        for (Event<Integer, Review> event : events) {
+            List<Review> created = event.getEventType() == Event.Type.CREATE_BATCH ? event.getBatch() : List.of(event.getData());
+            created.forEach(review -> {
+                reviews.add(review);
+                owners.add(event);
+            });
+        }
+
+        LOG.info("Create {} reviews from {} events in one batch", reviews.size(), events.size());
+        return bulkWriter.insert(reviews)
+                .map(failed -> failed.stream().map(owners::get).distinct().toList());
+    }
+
+    private Mono<Void> processEvent(Event<Integer, Review> event) {
+        return deduplicator.processOnce(event, () -> metrics.record(event, Mono.defer(() -> {
             LOG.info("Process message created at {}...", event.getEventCreatedAt());
 
-            switch (event.getEventType()) {
-                case CREATE:
+            return switch (event.getEventType()) {
+                case CREATE -> {
                     Review review = event.getData();
                     LOG.info("Create review with ID: {}/{}", review.productId(), review.reviewId());
-                    reviewService.createReview(review).block();
-                    break;
+                    yield reviewService.createReview(review).then();
+                }
+
+                case CREATE_BATCH -> {
+                    List<Review> reviews = event.getBatch();
+                    LOG.info("Create {} reviews with ProductID: {}", reviews.size(), event.getKey());
+                    yield reviewService.createReviews(reviews).then();
+                }
 
-                case DELETE:
+                case DELETE -> {
                     int productId = event.getKey();
                     LOG.info("Delete reviews with ProductID: {}", productId);
-                    reviewService.deleteReviews(productId).block();
-                    break;
+                    yield reviewService.deleteReviews(productId);
+                }
 
-                default:
-                    String errorMessage = "Incorrect event type: " + event.getEventType() + ", expected a CREATE or DELETE event";
+                default -> {
+                    String errorMessage = "Incorrect event type: " + event.getEventType() + ", expected a CREATE, CREATE_BATCH or DELETE event";
                     LOG.warn(errorMessage);
-                    throw new EventProcessingException(errorMessage);
-            }
-
-            LOG.info("Message processing done!");
-        };
+                    yield Mono.error(new EventProcessingException(errorMessage));
+                }
+            };
+        }).doOnSuccess(_ -> LOG.info("Message processing done!"))));
     }
 }
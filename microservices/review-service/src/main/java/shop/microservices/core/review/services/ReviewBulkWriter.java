@@ -0,0 +1,105 @@
+package shop.microservices.core.review.services;
+
+import jakarta.validation.Validator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import shop.api.core.review.Review;
+import shop.microservices.core.review.persistence.ReviewEntity;
+
+import java.sql.Date;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Writes many reviews at once, used when events are consumed in batches.
+ * <p>
+ * Hibernate can't batch inserts of entities with IDENTITY ids, so the reviews are inserted with a JDBC batch instead.
+ * The datasource sets rewriteBatchedStatements, which makes the MySQL driver send the batch as multi-row INSERTs.
+ * The review statistics are updated in the same transaction.
+ */
+@Component
+public class ReviewBulkWriter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReviewBulkWriter.class);
+
+    private static final String INSERT_REVIEW =
+            "INSERT INTO reviews (version, product_id, review_id, author, subject, content, rating, date) VALUES (0, ?, ?, ?, ?, ?, ?, ?)";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final ReviewMapper mapper;
+    private final Validator validator;
+    private final Scheduler jdbcScheduler;
+    private final ReviewStatsUpdater statsUpdater;
+
+    @Autowired
+    public ReviewBulkWriter(
+            JdbcTemplate jdbcTemplate,
+            TransactionTemplate transactionTemplate,
+            ReviewMapper mapper,
+            Validator validator,
+            Scheduler jdbcScheduler,
+            ReviewStatsUpdater statsUpdater
+    ) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+        this.mapper = mapper;
+        this.validator = validator;
+        this.jdbcScheduler = jdbcScheduler;
+        this.statsUpdater = statsUpdater;
+    }
+
+    /**
+     * Inserts the valid reviews with one JDBC batch, in one transaction.
+     * Returns the indexes of the reviews that were not inserted: the invalid ones, or all of them if the insert failed.
+     */
+    public Mono<List<Integer>> insert(List<Review> reviews) {
+        return Mono.fromCallable(() -> internalInsert(reviews))
+                .subscribeOn(jdbcScheduler);
+    }
+
+    private List<Integer> internalInsert(List<Review> reviews) {
+        List<Integer> notInserted = new ArrayList<>();
+        List<ReviewEntity> entities = new ArrayList<>();
+        for (int i = 0; i < reviews.size(); i++) {
+            ReviewEntity entity = mapper.apiToEntity(reviews.get(i));
+            if (entity.getProductId() < 1 || !validator.validate(entity).isEmpty()) {
+                notInserted.add(i);
+            } else {
+                entities.add(entity);
+            }
+        }
+
+        if (entities.isEmpty()) {
+            return notInserted;
+        }
+
+        try {
+            transactionTemplate.executeWithoutResult(_ -> {
+                jdbcTemplate.batchUpdate(INSERT_REVIEW, entities, entities.size(), (ps, entity) -> {
+                    ps.setInt(1, entity.getProductId());
+                    ps.setInt(2, entity.getReviewId());
+                    ps.setString(3, entity.getAuthor());
+                    ps.setString(4, entity.getSubject());
+                    ps.setString(5, entity.getContent());
+                    ps.setInt(6, entity.getRating());
+                    ps.setDate(7, entity.getDate() == null ? null : Date.valueOf(entity.getDate()));
+                });
+                statsUpdater.add(entities);
+            });
+            LOG.debug("Inserted {} reviews in one batch", entities.size());
+            return notInserted;
+
+        } catch (RuntimeException ex) {
+            LOG.warn("Failed to insert a batch of {} reviews: {}", entities.size(), ex.toString());
+            return IntStream.range(0, reviews.size()).boxed().toList();
+        }
+    }
+}
@@ -1,19 +1,31 @@
 package shop.microservices.core.review.services;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.Limit;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.web.bind.annotation.RestController;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.core.scheduler.Scheduler;
 import shop.api.core.review.Review;
+import shop.api.core.review.ReviewPage;
 import shop.api.core.review.ReviewService;
+import shop.api.core.review.ReviewStats;
 import shop.api.exceptions.InvalidInputException;
 import shop.microservices.core.review.persistence.ReviewEntity;
 import shop.microservices.core.review.persistence.ReviewRepository;
+import shop.microservices.core.review.persistence.ReviewStatsEntity;
+import shop.microservices.core.review.persistence.ReviewStatsRepository;
 import shop.util.http.ServiceUtil;
 
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 import static reactor.core.publisher.Mono.fromCallable;
 import static reactor.core.publisher.Mono.fromRunnable;
@@ -29,17 +41,37 @@ public class ReviewServiceImpl implements ReviewService {
 
     private final Scheduler jdbcScheduler;
 
+    private final ReviewStatsRepository statsRepository;
+
+    private final ReviewStatsUpdater statsUpdater;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final ReviewStreamReader streamReader;
+
+    private final int maxPageSize;
+
     @Autowired
     public ReviewServiceImpl(
             ReviewRepository repository,
             ReviewMapper mapper,
             ServiceUtil serviceUtil,
-            Scheduler jdbcScheduler
+            Scheduler jdbcScheduler,
+            ReviewStatsRepository statsRepository,
+            ReviewStatsUpdater statsUpdater,
+            TransactionTemplate transactionTemplate,
+            ReviewStreamReader streamReader,
+            @Value("${app.maxPageSize:1000}") int maxPageSize
     ) {
         this.repository = repository;
         this.mapper = mapper;
         this.serviceUtil = serviceUtil;
         this.jdbcScheduler = jdbcScheduler;
+        this.statsRepository = statsRepository;
+        this.statsUpdater = statsUpdater;
+        this.transactionTemplate = transactionTemplate;
+        this.streamReader = streamReader;
+        this.maxPageSize = maxPageSize;
     }
 
     @Override
@@ -57,8 +89,59 @@ public class ReviewServiceImpl implements ReviewService {
             throw new InvalidInputException("Invalid productId: " + productId);
         }
 
-        return fromCallable(() -> internalGetReviews(productId))
+        return streamReader.streamByProductId(productId);
+    }
+
+    @Override
+    public Mono<ReviewPage> getReviewPage(int productId, String after, int limit) {
+        if (productId < 1) {
+            throw new InvalidInputException("Invalid productId: " + productId);
+        }
+
+        if (limit < 1 || limit > maxPageSize) {
+            throw new InvalidInputException("Invalid limit: " + limit + ", must be between 1 and " + maxPageSize);
+        }
+
+        Cursor cursor = after == null ? null : Cursor.parse(after);
+        return fromCallable(() -> internalGetReviewPage(productId, cursor, limit))
+                .subscribeOn(jdbcScheduler);
+    }
+
+    @Override
+    public Flux<Review> getReviewsByProductIds(List<Integer> productIds) {
+        for (int productId : productIds) {
+            if (productId < 1) {
+                throw new InvalidInputException("Invalid productId: " + productId);
+            }
+        }
+
+        return streamReader.streamByProductIds(productIds);
+    }
+
+    @Override
+    public Mono<ReviewStats> getReviewStats(int productId) {
+        if (productId < 1) {
+            throw new InvalidInputException("Invalid productId: " + productId);
+        }
+
+        return fromCallable(() -> statsRepository.findById(productId)
+                .map(this::toApi)
+                .orElseGet(() -> ReviewStats.none(productId))
+                .withServiceAddress(serviceUtil.getServiceAddress()))
+                .subscribeOn(jdbcScheduler);
+    }
+
+    @Override
+    public Flux<ReviewStats> getReviewStatsByProductIds(List<Integer> productIds) {
+        for (int productId : productIds) {
+            if (productId < 1) {
+                throw new InvalidInputException("Invalid productId: " + productId);
+            }
+        }
+
+        return fromCallable(() -> statsRepository.findAllById(productIds))
                 .flatMapMany(Flux::fromIterable)
+                .map(entity -> toApi(entity).withServiceAddress(serviceUtil.getServiceAddress()))
                 .subscribeOn(jdbcScheduler);
     }
 
@@ -73,10 +156,42 @@ public class ReviewServiceImpl implements ReviewService {
                 .then();
     }
 
+    @Override
+    public Flux<Review> createReviews(List<Review> body) {
+        body.forEach(r -> {
+            if (r.productId() < 1) {
+                throw new InvalidInputException("Invalid productId: " + r.productId());
+            }
+        });
+        return fromCallable(() -> internalCreateReviews(body))
+                .flatMapMany(Flux::fromIterable)
+                .subscribeOn(jdbcScheduler);
+    }
+
+    private List<Review> internalCreateReviews(List<Review> body) {
+        // All reviews and their statistics are written in one transaction, i.e. either all of them are created or none
+        try {
+            List<ReviewEntity> entities = body.stream().map(mapper::apiToEntity).toList();
+            return transactionTemplate.execute(_ -> {
+                List<ReviewEntity> saved = new ArrayList<>();
+                repository.saveAll(entities).forEach(saved::add);
+                statsUpdater.add(saved);
+                return saved.stream().map(mapper::entityToApi).toList();
+            });
+
+        } catch (DataIntegrityViolationException dive) {
+            throw new InvalidInputException("Duplicate key in batch of " + body.size() + " reviews for Product Id: " + body.getFirst().productId());
+        }
+    }
+
     private Review internalCreateReview(Review body) {
         try {
             ReviewEntity entity = mapper.apiToEntity(body);
-            ReviewEntity newEntity = repository.save(entity);
+            ReviewEntity newEntity = transactionTemplate.execute(_ -> {
+                ReviewEntity saved = repository.save(entity);
+                statsUpdater.add(List.of(saved));
+                return saved;
+            });
 
             return mapper.entityToApi(newEntity);
 
@@ -85,15 +200,58 @@ public class ReviewServiceImpl implements ReviewService {
         }
     }
 
-    private List<Review> internalGetReviews(int productId) {
-        List<ReviewEntity> entityList = repository.findByProductId(productId);
-        return mapper.entityListToApiList(entityList)
-                .stream()
-                .map(e -> e.withServiceAddress(serviceUtil.getServiceAddress()))
+    private ReviewPage internalGetReviewPage(int productId, Cursor after, int limit) {
+        // Read one extra row to find out if there is a next page
+        List<ReviewEntity> entityList = after == null
+                ? repository.findFirstPage(productId, Limit.of(limit + 1))
+                : repository.findPageAfter(productId, after.date(), after.reviewId(), Limit.of(limit + 1));
+
+        List<Review> reviews = entityList.stream()
+                .limit(limit)
+                .map(e -> mapper.entityToApi(e).withServiceAddress(serviceUtil.getServiceAddress()))
                 .toList();
+        String nextCursor = entityList.size() > limit ? Cursor.of(entityList.get(limit - 1)).toString() : null;
+        return new ReviewPage(reviews, nextCursor);
+    }
+
+    /**
+     * The date and reviewId of the last review of a page, written as e.g. "2024-05-01_17".
+     */
+    private record Cursor(LocalDate date, int reviewId) {
+
+        static Cursor of(ReviewEntity last) {
+            return new Cursor(last.getDate(), last.getReviewId());
+        }
+
+        static Cursor parse(String cursor) {
+            int separator = cursor.lastIndexOf('_');
+            try {
+                return new Cursor(LocalDate.parse(cursor.substring(0, Math.max(separator, 0))), Integer.parseInt(cursor.substring(separator + 1)));
+            } catch (DateTimeParseException | NumberFormatException _) {
+                throw new InvalidInputException("Invalid after: " + cursor);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return date + "_" + reviewId;
+        }
     }
 
     private void internalDeleteReviews(int productId) {
-        repository.deleteAll(repository.findByProductId(productId));
+        transactionTemplate.executeWithoutResult(_ -> {
+            repository.deleteAll(repository.findByProductId(productId));
+            statsUpdater.deleteAll(productId);
+        });
+    }
+
+    private ReviewStats toApi(ReviewStatsEntity entity) {
+        return new ReviewStats(
+                entity.getProductId(),
+                entity.getReviewCount(),
+                entity.getReviewCount() == 0 ? null : (double) entity.getRatingSum() / entity.getReviewCount(),
+                new TreeMap<>(Map.of(1, entity.getRating1(), 2, entity.getRating2(), 3, entity.getRating3(), 4, entity.getRating4(), 5, entity.getRating5())),
+                entity.getLatestDate(),
+                null);
     }
 }
\ No newline at end of file
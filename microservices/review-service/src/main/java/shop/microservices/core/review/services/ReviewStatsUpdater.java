@@ -0,0 +1,54 @@
+package shop.microservices.core.review.services;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import shop.microservices.core.review.persistence.ReviewEntity;
+import shop.microservices.core.review.persistence.ReviewStatsRepository;
+
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps the review statistics of the products in step with their reviews. Has to be called in the transaction that
+ * writes the reviews, so that the statistics are never out of step with them.
+ */
+@Component
+public class ReviewStatsUpdater {
+
+    private final ReviewStatsRepository repository;
+
+    @Autowired
+    public ReviewStatsUpdater(ReviewStatsRepository repository) {
+        this.repository = repository;
+    }
+
+    /**
+     * Adds the created reviews to the statistics, with one upsert per product.
+     */
+    public void add(Collection<ReviewEntity> created) {
+        Map<Integer, List<ReviewEntity>> byProductId = created.stream().collect(Collectors.groupingBy(ReviewEntity::getProductId));
+        byProductId.forEach((productId, reviews) -> {
+            int[] ratings = new int[6];
+            int ratingSum = 0;
+            LocalDate latestDate = null;
+            for (ReviewEntity review : reviews) {
+                // Ratings aren't validated, one outside 1 to 5 counts in the average but not in the histogram
+                if (review.getRating() >= 1 && review.getRating() <= 5) {
+                    ratings[review.getRating()]++;
+                }
+                ratingSum += review.getRating();
+                if (review.getDate() != null && (latestDate == null || review.getDate().isAfter(latestDate))) {
+                    latestDate = review.getDate();
+                }
+            }
+            repository.add(productId, reviews.size(), ratingSum, ratings[1], ratings[2], ratings[3], ratings[4], ratings[5], latestDate);
+        });
+    }
+
+    public void deleteAll(int productId) {
+        repository.deleteByProductId(productId);
+    }
+}
@@ -0,0 +1,129 @@
+package shop.microservices.core.review.services;
+
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import shop.api.core.review.Review;
+import shop.microservices.core.review.persistence.ReviewEntity;
+import shop.util.http.ServiceUtil;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+/**
+ * Reads the reviews of products as a stream, without holding all of them in memory at once.
+ * <p>
+ * The reviews are read with a stateless session, so they are not kept in a persistence context, through a forward-only
+ * cursor. The datasource sets useCursorFetch, which makes the MySQL driver fetch the rows from the server
+ * app.reviews.fetchSize at a time. A review is emitted as its row is read and rows are only read when asked for,
+ * so at most about one fetch of rows is held per request. The cursor and session are closed when the stream
+ * completes, fails or is cancelled.
+ * <p>
+ * Since a stream holds a pooled connection for as long as it is read, at most app.reviews.maxConcurrentStreams streams
+ * are open at a time and a stream fails if it is not done within app.reviews.streamTimeout. A stream requested when
+ * the limit is reached fails right away with 503 Service Unavailable, instead of waiting for a connection that
+ * other requests need too.
+ */
+@Component
+public class ReviewStreamReader {
+
+    private static final String BY_PRODUCT_ID =
+            "FROM ReviewEntity r WHERE r.productId = :productId ORDER BY r.reviewId";
+    private static final String BY_PRODUCT_IDS =
+            "FROM ReviewEntity r WHERE r.productId IN :productIds ORDER BY r.productId, r.reviewId";
+
+    private final SessionFactory sessionFactory;
+    private final ReviewMapper mapper;
+    private final ServiceUtil serviceUtil;
+    private final Scheduler jdbcScheduler;
+    private final int fetchSize;
+    private final Duration streamTimeout;
+    private final Semaphore streamPermits;
+
+    @Autowired
+    public ReviewStreamReader(
+            EntityManagerFactory entityManagerFactory,
+            ReviewMapper mapper,
+            ServiceUtil serviceUtil,
+            Scheduler jdbcScheduler,
+            @Value("${app.reviews.fetchSize:100}") int fetchSize,
+            @Value("${app.reviews.streamTimeout:30s}") Duration streamTimeout,
+            @Value("${app.reviews.maxConcurrentStreams:5}") int maxConcurrentStreams
+    ) {
+        this.sessionFactory = entityManagerFactory.unwrap(SessionFactory.class);
+        this.mapper = mapper;
+        this.serviceUtil = serviceUtil;
+        this.jdbcScheduler = jdbcScheduler;
+        this.fetchSize = fetchSize;
+        this.streamTimeout = streamTimeout;
+        this.streamPermits = new Semaphore(maxConcurrentStreams);
+    }
+
+    /**
+     * Returns the reviews of the product ordered by reviewId.
+     */
+    public Flux<Review> streamByProductId(int productId) {
+        return stream(session -> session.createSelectionQuery(BY_PRODUCT_ID, ReviewEntity.class)
+                .setParameter("productId", productId)
+                .setFetchSize(fetchSize)
+                .setReadOnly(true)
+                .scroll(ScrollMode.FORWARD_ONLY));
+    }
+
+    /**
+     * Returns the reviews of the products ordered by productId and reviewId.
+     */
+    public Flux<Review> streamByProductIds(Collection<Integer> productIds) {
+        return stream(session -> session.createSelectionQuery(BY_PRODUCT_IDS, ReviewEntity.class)
+                .setParameterList("productIds", productIds)
+                .setFetchSize(fetchSize)
+                .setReadOnly(true)
+                .scroll(ScrollMode.FORWARD_ONLY));
+    }
+
+    // The rows are read on one jdbcScheduler worker as they are requested, and the cursor is closed there too.
+    // The permit is released by the outermost operator, so it is also released if the stream is cancelled before
+    // it is subscribed to on the jdbcScheduler
+    private Flux<Review> stream(Function<StatelessSession, ScrollableResults<ReviewEntity>> query) {
+        return Flux.defer(() -> {
+            if (!streamPermits.tryAcquire()) {
+                return Flux.error(new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Too many concurrent review streams"));
+            }
+
+            String serviceAddress = serviceUtil.getServiceAddress();
+
+            return Flux.using(
+                            sessionFactory::openStatelessSession,
+                            session -> Flux.<Review, ScrollableResults<ReviewEntity>>generate(
+                                    () -> query.apply(session),
+                                    (rows, sink) -> {
+                                        if (rows.next()) {
+                                            sink.next(mapper.entityToApi(rows.get()).withServiceAddress(serviceAddress));
+                                        } else {
+                                            sink.complete();
+                                        }
+                                        return rows;
+                                    },
+                                    ScrollableResults::close),
+                            StatelessSession::close)
+                    .subscribeOn(jdbcScheduler)
+                    .cancelOn(jdbcScheduler)
+                    .takeUntilOther(Mono.delay(streamTimeout).then(Mono.error(
+                            () -> new TimeoutException("Review stream not done within " + streamTimeout.toMillis() + " ms"))))
+                    .doFinally(_ -> streamPermits.release());
+        });
+    }
+}
@@ -0,0 +1,28 @@
+-- Review statistics per product, maintained in the same transaction as the reviews they summarize
+CREATE TABLE review_stats
+(
+    product_id   INT NOT NULL,
+    review_count INT NOT NULL,
+    rating_sum   INT NOT NULL,
+    rating_1     INT NOT NULL DEFAULT 0,
+    rating_2     INT NOT NULL DEFAULT 0,
+    rating_3     INT NOT NULL DEFAULT 0,
+    rating_4     INT NOT NULL DEFAULT 0,
+    rating_5     INT NOT NULL DEFAULT 0,
+    latest_date  DATE,
+    PRIMARY KEY (product_id)
+);
+
+-- Summarize the existing reviews
+INSERT INTO review_stats (product_id, review_count, rating_sum, rating_1, rating_2, rating_3, rating_4, rating_5, latest_date)
+SELECT product_id,
+       COUNT(*),
+       SUM(rating),
+       SUM(rating = 1),
+       SUM(rating = 2),
+       SUM(rating = 3),
+       SUM(rating = 4),
+       SUM(rating = 5),
+       MAX(date)
+FROM reviews
+GROUP BY product_id;
@@ -0,0 +1,2 @@
+-- Serves the newest first pages of the reviews of a product without sorting them
+CREATE INDEX reviews_product_date_idx ON reviews (product_id, date DESC, review_id DESC);
@@ -29,7 +29,7 @@ public class ReviewDbMigrationTest extends MySqlTestBase {
         BigInteger dbMajorVersion = flyway.info().current().getVersion().getMajor();
 
         assertThat(dbMajorVersion)
-                .isEqualTo(3);
+                .isEqualTo(5);
 
         try {
             //noinspection SqlDialectInspection
@@ -38,6 +38,13 @@ public class ReviewDbMigrationTest extends MySqlTestBase {
                     .listOfRows();
 
             assertThat(rows.size()).isEqualTo(0);
+
+            //noinspection SqlDialectInspection
+            var stats = jdbcClient.sql("select product_id, review_count from review_stats")
+                    .query()
+                    .listOfRows();
+
+            assertThat(stats.size()).isEqualTo(0);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -6,13 +6,20 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.http.HttpStatus;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
 import org.springframework.test.web.reactive.server.WebTestClient;
 import shop.api.core.review.Review;
 import shop.api.event.Event;
 import shop.api.exceptions.InvalidInputException;
 import shop.microservices.core.review.persistence.ReviewRepository;
+import shop.microservices.core.review.persistence.ReviewStatsRepository;
+import shop.microservices.core.review.services.ReviewStreamReader;
 
+import java.time.Duration;
 import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.List;
 import java.util.function.Consumer;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
@@ -37,13 +44,24 @@ class ReviewServiceApiTests extends MySqlTestBase {
     @Autowired
     private ReviewRepository repository;
 
+    @Autowired
+    private ReviewStatsRepository statsRepository;
+
+    @Autowired
+    private ReviewStreamReader streamReader;
+
     @Autowired
     @Qualifier("messageProcessor")
     private Consumer<Event<Integer, Review>> messageProcessor;
 
+    @Autowired
+    @Qualifier("batchMessageProcessor")
+    private Consumer<Message<List<Event<Integer, Review>>>> batchMessageProcessor;
+
     @BeforeEach
     void setupDb() {
         repository.deleteAll();
+        statsRepository.deleteAll();
     }
 
     @Test
@@ -64,6 +82,97 @@ class ReviewServiceApiTests extends MySqlTestBase {
                 .jsonPath("$[2].reviewId").isEqualTo(3);
     }
 
+    @Test
+    void getReviewsByProductIds() {
+        sendCreateReviewEvent(1, 1);
+        sendCreateReviewEvent(1, 2);
+        sendCreateReviewEvent(2, 1);
+        sendCreateReviewEvent(3, 1);
+
+        getAndVerifyReviewsByProductId("?productIds=1,2", OK)
+                .jsonPath("$.length()").isEqualTo(3)
+                .jsonPath("$[?(@.productId == 3)]").doesNotExist();
+    }
+
+    @Test
+    void getReviewsByProductIdsInvalidParameterNegativeValue() {
+        getAndVerifyReviewsByProductId("?productIds=1,-1", UNPROCESSABLE_ENTITY)
+                .jsonPath("$.path").isEqualTo("/review")
+                .jsonPath("$.message").isEqualTo("Invalid productId: -1");
+    }
+
+    @Test
+    void cancelledStreamsReleaseTheirConnections() {
+        sendCreateReviewsEvent(1, 1, 2, 3, 4, 5);
+
+        // Taking the first reviews cancels the stream, which has to close its cursor and give its connection back,
+        // or the pool would run out of connections well before the last read
+        for (int i = 0; i < 50; i++) {
+            List<Integer> reviewIds = streamReader.streamByProductId(1)
+                    .take(2)
+                    .map(Review::reviewId)
+                    .collectList()
+                    .block(Duration.ofSeconds(10));
+            assertEquals(List.of(1, 2), reviewIds);
+        }
+
+        assertEquals(List.of(1, 2, 3, 4, 5), streamReader.streamByProductIds(List.of(1, 2))
+                .map(Review::reviewId)
+                .collectList()
+                .block(Duration.ofSeconds(10)));
+    }
+
+    @Test
+    void getReviewsPageByPage() {
+        sendCreateReviewsEvent(1, 1, 2, 3, 4, 5);
+        messageProcessor.accept(new Event<>(CREATE, 1,
+                new Review(1, 6, "Author 6", "Subject 6", REVIEW_CONTENT + 6, 4, LocalDate.now().minusDays(1), "SA")));
+
+        getAndVerifyReviewsByProductId("?productId=1&limit=2", OK)
+                .jsonPath("$.reviews[*].reviewId").isEqualTo(List.of(5, 4))
+                .jsonPath("$.nextCursor").isEqualTo(LocalDate.now() + "_4");
+
+        getAndVerifyReviewsByProductId("?productId=1&limit=3&after=" + LocalDate.now() + "_4", OK)
+                .jsonPath("$.reviews[*].reviewId").isEqualTo(List.of(3, 2, 1))
+                .jsonPath("$.nextCursor").isEqualTo(LocalDate.now() + "_1");
+
+        // The older review comes last, on a page of its own
+        getAndVerifyReviewsByProductId("?productId=1&limit=3&after=" + LocalDate.now() + "_1", OK)
+                .jsonPath("$.reviews[*].reviewId").isEqualTo(List.of(6))
+                .jsonPath("$.nextCursor").doesNotExist();
+    }
+
+    @Test
+    void getReviewsPageInvalidParameters() {
+        getAndVerifyReviewsByProductId("?productId=1&limit=0", UNPROCESSABLE_ENTITY)
+                .jsonPath("$.message").isEqualTo("Invalid limit: 0, must be between 1 and 1000");
+
+        getAndVerifyReviewsByProductId("?productId=1&limit=10&after=yesterday", UNPROCESSABLE_ENTITY)
+                .jsonPath("$.message").isEqualTo("Invalid after: yesterday");
+    }
+
+    @Test
+    void reviewStatsFollowTheReviews() {
+        sendCreateReviewEvent(1, 1);
+        sendCreateReviewsEvent(1, 2, 3);
+        sendCreateReviewEvent(2, 1);
+
+        getAndVerifyReviewStats("?productId=1", OK)
+                .jsonPath("$.count").isEqualTo(3)
+                .jsonPath("$.averageRating").isEqualTo(4.0)
+                .jsonPath("$.ratingHistogram.4").isEqualTo(3)
+                .jsonPath("$.latestReviewDate").isEqualTo(LocalDate.now().toString());
+
+        getAndVerifyReviewStats("?productIds=1,2,3", OK)
+                .jsonPath("$.length()").isEqualTo(2);
+
+        sendDeleteReviewEvent(1);
+
+        getAndVerifyReviewStats("?productId=1", OK)
+                .jsonPath("$.count").isEqualTo(0)
+                .jsonPath("$.averageRating").doesNotExist();
+    }
+
     @Test
     void duplicateError() {
 
@@ -85,6 +194,33 @@ class ReviewServiceApiTests extends MySqlTestBase {
         assertEquals(1, repository.count());
     }
 
+    @Test
+    void createReviewsInOneBatch() {
+
+        int productId = 1;
+
+        sendCreateReviewsEvent(productId, 1, 2, 3);
+        assertEquals(3, repository.findByProductId(productId).size());
+
+        // A duplicate in the batch rolls back the whole batch
+        assertThrows(InvalidInputException.class, () -> sendCreateReviewsEvent(productId, 4, 1));
+        assertEquals(3, repository.findByProductId(productId).size());
+    }
+
+    @Test
+    void createReviewsFromBatchOfEvents() {
+        sendCreateReviewEvent(1, 1);
+
+        // The duplicate review 1/1 fails the JDBC batch, the other events are then processed one by one
+        batchMessageProcessor.accept(MessageBuilder.withPayload(List.of(
+                new Event<>(CREATE, 1, review(1, 2)),
+                new Event<>(CREATE, 1, review(1, 1)),
+                Event.createBatch(2, List.of(review(2, 1), review(2, 2))))).build());
+
+        assertEquals(2, repository.findByProductId(1).size());
+        assertEquals(2, repository.findByProductId(2).size());
+    }
+
     @Test
     void deleteReviews() {
 
@@ -141,12 +277,33 @@ class ReviewServiceApiTests extends MySqlTestBase {
                 .expectBody();
     }
 
+    private WebTestClient.BodyContentSpec getAndVerifyReviewStats(String productIdQuery, HttpStatus expectedStatus) {
+        return client.get()
+                .uri("/review/stats" + productIdQuery)
+                .accept(APPLICATION_JSON)
+                .exchange()
+                .expectStatus().isEqualTo(expectedStatus)
+                .expectHeader().contentType(APPLICATION_JSON)
+                .expectBody();
+    }
+
     private void sendCreateReviewEvent(int productId, int reviewId) {
         Review review = new Review(productId, reviewId, "Author " + reviewId, "Subject " + reviewId, REVIEW_CONTENT + reviewId, 4, LocalDate.now(), "SA");
         Event<Integer, Review> event = new Event<>(CREATE, productId, review);
         messageProcessor.accept(event);
     }
 
+    private void sendCreateReviewsEvent(int productId, int... reviewIds) {
+        List<Review> reviews = Arrays.stream(reviewIds)
+                .mapToObj(reviewId -> review(productId, reviewId))
+                .toList();
+        messageProcessor.accept(Event.createBatch(productId, reviews));
+    }
+
+    private Review review(int productId, int reviewId) {
+        return new Review(productId, reviewId, "Author " + reviewId, "Subject " + reviewId, REVIEW_CONTENT + reviewId, 4, LocalDate.now(), "SA");
+    }
+
     private void sendDeleteReviewEvent(int productId) {
         Event<Integer, Review> event = new Event<>(DELETE, productId, null);
         messageProcessor.accept(event);
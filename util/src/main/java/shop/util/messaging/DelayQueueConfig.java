@@ -0,0 +1,28 @@
+package shop.util.messaging;
+
+import org.springframework.amqp.core.Declarables;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Declares the delay queues of the messageProcessor-in-0 consumer queue, see {@link DelayedRetries}. Services that don't
+ * consume events from a group declare none.
+ */
+@Configuration
+public class DelayQueueConfig {
+
+    @Bean
+    public Declarables delayQueues(
+            DelayedRetries delayedRetries,
+            @Value("${spring.cloud.stream.bindings.messageProcessor-in-0.destination:}") String destination,
+            @Value("${spring.cloud.stream.bindings.messageProcessor-in-0.group:}") String group,
+            @Value("${spring.cloud.stream.bindings.messageProcessor-in-0.consumer.partitioned:false}") boolean partitioned,
+            @Value("${spring.cloud.stream.instanceIndex:0}") int instanceIndex
+    ) {
+        if (destination.isEmpty() || group.isEmpty()) {
+            return new Declarables();
+        }
+        return delayedRetries.declarables(DelayedRetries.consumerQueue(destination, group, partitioned, instanceIndex));
+    }
+}
@@ -0,0 +1,231 @@
+package shop.util.messaging;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Declarables;
+import org.springframework.amqp.core.Queue;
+import org.springframework.amqp.support.AmqpHeaders;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Parks failed messages in delay queues, instead of retrying them while the consumer waits.
+ * <p>
+ * There is one delay queue per consumer queue and delay in app.messaging.retry.delays, e.g. reviews.reviewsGroup.retry.10000
+ * for a 10s delay. A delay queue has no consumer: its messages expire after the delay and are dead-lettered back to the
+ * consumer queue through the default exchange, so that only the consumer group that failed gets them again. The failed
+ * attempts so far are counted by the x-retry-attempt header, the n-th failure is parked for the n-th delay. Once all delays
+ * are used up, the message is left to be dead-lettered to the DLQ. A message that must not overtake a parked one can
+ * follow it into its delay queue, without counting an attempt, see {@link ReactiveMessageProcessors}.
+ * <p>
+ * The delay queues are declared by the RabbitAdmin, through the {@link Declarables} returned by {@link #declarables},
+ * each time a connection to the broker is opened, so not on the consumer channel where a failing declaration would
+ * close it. The messages are republished on the channel they were received on, and only count as parked once the broker
+ * has confirmed them, within app.messaging.retry.confirmTimeout. Messages received without a channel, or from a consumer
+ * queue whose delay queues are not declared, e.g. from the test binder, can't be parked.
+ */
+@Component
+public class DelayedRetries {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DelayedRetries.class);
+
+    public static final String ATTEMPT_HEADER = "x-retry-attempt";
+    public static final String TICKET_HEADER = "x-retry-ticket";
+    public static final String FOLLOWED_HEADER = "x-retry-followed";
+
+    private static final Set<String> RECEIPT_HEADERS =
+            Set.of(MessageHeaders.ID, MessageHeaders.TIMESTAMP, MessageHeaders.CONTENT_TYPE, "deliveryAttempt", "target-protocol");
+
+    private final ObjectMapper mapper;
+    private final boolean enabled;
+    private final List<Duration> delays;
+    private final Duration confirmTimeout;
+    // The consumer queues whose delay queues are declared
+    private final Set<String> consumerQueues = ConcurrentHashMap.newKeySet();
+    private final Map<Duration, Counter> parkedCounters = new HashMap<>();
+
+    @Autowired
+    public DelayedRetries(
+            ObjectMapper mapper,
+            MeterRegistry meterRegistry,
+            @Value("${app.messaging.retry.enabled:true}") boolean enabled,
+            @Value("${app.messaging.retry.delays:1s,10s,1m}") List<Duration> delays,
+            @Value("${app.messaging.retry.confirmTimeout:5s}") Duration confirmTimeout
+    ) {
+        this.mapper = mapper;
+        this.enabled = enabled && !delays.isEmpty();
+        this.delays = delays;
+        this.confirmTimeout = confirmTimeout;
+
+        for (Duration delay : delays) {
+            parkedCounters.put(delay, Counter.builder("messaging.retry.parked")
+                    .description("Failed messages parked in a delay queue")
+                    .tag("delay", delay.toString())
+                    .register(meterRegistry));
+        }
+    }
+
+    /**
+     * Returns true if a message received with these headers can be parked in a delay queue when it fails.
+     */
+    public boolean canPark(Channel channel, Map<String, Object> headers) {
+        return enabled && channel != null
+                && headers.get(AmqpHeaders.CONSUMER_QUEUE) instanceof String consumerQueue && consumerQueues.contains(consumerQueue);
+    }
+
+    /**
+     * Returns the delay queues of the consumer queue to declare, and lets the messages of the consumer queue be parked.
+     */
+    public Declarables declarables(String consumerQueue) {
+        if (!enabled) {
+            return new Declarables();
+        }
+
+        consumerQueues.add(consumerQueue);
+        return new Declarables(delays.stream()
+                .map(delay -> new Queue(delayQueue(consumerQueue, delay), true, false, false, Map.of(
+                        "x-message-ttl", delay.toMillis(),
+                        "x-dead-letter-exchange", "",
+                        "x-dead-letter-routing-key", consumerQueue)))
+                .toList());
+    }
+
+    /**
+     * Publishes the payload to the delay queue for its next attempt, with the ticket in the x-retry-ticket header if one
+     * is given. Returns the delay it was parked for, or empty if it has no attempts left, or if it could not be
+     * published, in which case it should be dead-lettered.
+     */
+    public Optional<Duration> park(Object payload, Channel channel, Map<String, Object> headers, String ticket) {
+        int failedAttempts = failedAttempts(headers) + 1;
+        if (failedAttempts > delays.size()) {
+            LOG.warn("Message failed {} times, will dead-letter it", failedAttempts);
+            return Optional.empty();
+        }
+
+        Duration delay = delays.get(failedAttempts - 1);
+        if (!publish(payload, channel, headers, delay, failedAttempts, ticket)) {
+            return Optional.empty();
+        }
+
+        parkedCounters.get(delay).increment();
+        LOG.info("Message failed {} time(s), parked it to be retried in {}", failedAttempts, delay);
+        return Optional.of(delay);
+    }
+
+    /**
+     * Publishes the payload, which has not failed, to the delay queue of the given delay, behind a parked message that
+     * it must not overtake. Its failed attempts are not counted up. Returns false if it could not be published.
+     */
+    public boolean follow(Object payload, Channel channel, Map<String, Object> headers, Duration delay, String ticket) {
+        Map<String, Object> followed = new HashMap<>(headers);
+        followed.put(FOLLOWED_HEADER, timesFollowed(headers) + 1);
+        if (!publish(payload, channel, followed, delay, failedAttempts(headers), ticket)) {
+            return false;
+        }
+
+        LOG.debug("Parked message for {} behind an earlier parked message", delay);
+        return true;
+    }
+
+    /**
+     * Returns true if the message may be parked behind another one once more. The times it was, counted by the
+     * x-retry-followed header, are capped at twice the number of delays, well above what it takes while the message
+     * ahead of it uses up its delays, so that it isn't parked forever behind a message that doesn't come back.
+     */
+    public boolean canFollow(Map<String, Object> headers) {
+        return timesFollowed(headers) < 2 * delays.size();
+    }
+
+    private static int timesFollowed(Map<String, Object> headers) {
+        return headers.get(FOLLOWED_HEADER) instanceof Number times ? times.intValue() : 0;
+    }
+
+    // Publishes on the channel the message was received on, and waits for the broker to confirm it
+    private boolean publish(Object payload, Channel channel, Map<String, Object> headers, Duration delay, int failedAttempts, String ticket) {
+        String delayQueue = delayQueue((String) headers.get(AmqpHeaders.CONSUMER_QUEUE), delay);
+
+        try {
+            AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder()
+                    .contentType("application/json")
+                    .deliveryMode(2)
+                    .headers(forwardedHeaders(headers, failedAttempts, ticket))
+                    .build();
+            channel.confirmSelect();
+            channel.basicPublish("", delayQueue, properties, mapper.writeValueAsBytes(payload));
+            // Don't wait with waitForConfirmsOrDie, it closes the channel and so requeues all unacked messages on it
+            if (!channel.waitForConfirms(confirmTimeout.toMillis())) {
+                throw new IOException("The broker didn't accept the message");
+            }
+            return true;
+
+        } catch (IOException | TimeoutException | RuntimeException ex) {
+            LOG.warn("Failed to park message in {}, will dead-letter it: {}", delayQueue, ex.toString());
+            return false;
+
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Interrupted while parking message in {}, will dead-letter it", delayQueue);
+            return false;
+        }
+    }
+
+    /**
+     * Returns the names of the delay queues of the consumer queue, if parking is enabled.
+     */
+    public List<String> delayQueues(String consumerQueue) {
+        return enabled ? delays.stream().map(delay -> delayQueue(consumerQueue, delay)).toList() : List.of();
+    }
+
+    /**
+     * Returns the name the Rabbit binder gives the queue of a consumer group: destination.group, with -instanceIndex
+     * for a partitioned consumer.
+     */
+    public static String consumerQueue(String destination, String group, boolean partitioned, int instanceIndex) {
+        String queue = destination + "." + group;
+        return partitioned ? queue + "-" + instanceIndex : queue;
+    }
+
+    // Queues are named by their delay, since redeclaring a queue with another TTL fails
+    private static String delayQueue(String consumerQueue, Duration delay) {
+        return consumerQueue + ".retry." + delay.toMillis();
+    }
+
+    private static int failedAttempts(Map<String, Object> headers) {
+        return headers.get(ATTEMPT_HEADER) instanceof Number attempts ? attempts.intValue() : 0;
+    }
+
+    // Keeps the application headers, e.g. partitionKey, but not the ones the binder adds on receipt
+    private static Map<String, Object> forwardedHeaders(Map<String, Object> headers, int failedAttempts, String ticket) {
+        Map<String, Object> forwarded = new HashMap<>();
+        headers.forEach((name, value) -> {
+            if (!name.startsWith(AmqpHeaders.PREFIX) && !name.startsWith("scst_") && !RECEIPT_HEADERS.contains(name)
+                    && (value instanceof String || value instanceof Number || value instanceof Boolean)) {
+                forwarded.put(name, value);
+            }
+        });
+        forwarded.put(ATTEMPT_HEADER, failedAttempts);
+        if (ticket == null) {
+            forwarded.remove(TICKET_HEADER);
+        } else {
+            forwarded.put(TICKET_HEADER, ticket);
+        }
+        return forwarded;
+    }
+}
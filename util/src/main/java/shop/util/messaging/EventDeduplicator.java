@@ -0,0 +1,157 @@
+package shop.util.messaging;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import shop.api.event.Event;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Remembers the ids of the events processed during the last app.messaging.dedupe.window, up to
+ * app.messaging.dedupe.maxSize of them, so that redelivered events are skipped instead of being processed again.
+ * <p>
+ * If app.messaging.dedupe.snapshotFile is set, the processed ids are written to that file on shutdown and read back
+ * on startup, so that the window survives a restart of the instance.
+ */
+@Component
+public class EventDeduplicator {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EventDeduplicator.class);
+
+    private final Cache<UUID, Instant> processedEvents;
+    private final Duration window;
+    private final Path snapshotFile;
+    private final Counter duplicates;
+
+    @Autowired
+    public EventDeduplicator(
+            MeterRegistry meterRegistry,
+            @Value("${app.messaging.dedupe.maxSize:100000}") long maxSize,
+            @Value("${app.messaging.dedupe.window:10m}") Duration window,
+            @Value("${app.messaging.dedupe.snapshotFile:}") String snapshotFile
+    ) {
+        this.window = window;
+        this.snapshotFile = snapshotFile.isBlank() ? null : Path.of(snapshotFile);
+
+        // Expire each id a window after it was processed, also for ids read from a snapshot
+        this.processedEvents = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfter(Expiry.<UUID, Instant>creating((_, processedAt) -> Duration.between(Instant.now(), processedAt.plus(window))))
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, processedEvents, "processedEvents");
+
+        this.duplicates = Counter.builder("messaging.events.duplicate")
+                .description("Redelivered events that were skipped since they already were processed")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Processes the event unless it already was processed, and remembers it once it is.
+     */
+    public Mono<Void> processOnce(Event<?, ?> event, Supplier<Mono<Void>> processing) {
+        return Mono.defer(() -> {
+            if (isProcessed(event)) {
+                return Mono.empty();
+            }
+            return processing.get().doOnSuccess(_ -> markProcessed(event));
+        });
+    }
+
+    /**
+     * Writes the events that were not processed yet with the bulk writer, and remembers the ones it didn't return as failed.
+     * Returns the failed events.
+     */
+    public <E extends Event<?, ?>> Mono<List<E>> writeOnce(List<E> events, Function<List<E>, Mono<List<E>>> bulkWriter) {
+        return Mono.defer(() -> {
+            List<E> notProcessed = events.stream().filter(event -> !isProcessed(event)).toList();
+            if (notProcessed.isEmpty()) {
+                return Mono.just(List.of());
+            }
+
+            return bulkWriter.apply(notProcessed).doOnNext(failed -> notProcessed.stream()
+                    .filter(event -> !failed.contains(event))
+                    .forEach(this::markProcessed));
+        });
+    }
+
+    /**
+     * Returns true if the event already was processed, and counts it as a duplicate.
+     */
+    public boolean isProcessed(Event<?, ?> event) {
+        if (event.getEventId() == null || processedEvents.getIfPresent(event.getEventId()) == null) {
+            return false;
+        }
+
+        LOG.debug("Skip the {} event {}, it already was processed", event.getEventType(), event.getEventId());
+        duplicates.increment();
+        return true;
+    }
+
+    public void markProcessed(Event<?, ?> event) {
+        if (event.getEventId() != null) {
+            processedEvents.put(event.getEventId(), Instant.now());
+        }
+    }
+
+    @PostConstruct
+    void loadSnapshot() {
+        if (snapshotFile == null || !Files.exists(snapshotFile)) {
+            return;
+        }
+
+        try {
+            Instant oldest = Instant.now().minus(window);
+            List<String> lines = Files.readAllLines(snapshotFile);
+            for (String line : lines) {
+                String[] fields = line.split(",");
+                Instant processedAt = Instant.ofEpochMilli(Long.parseLong(fields[1]));
+                if (processedAt.isAfter(oldest)) {
+                    processedEvents.put(UUID.fromString(fields[0]), processedAt);
+                }
+            }
+            LOG.info("Read {} processed event ids from {}", processedEvents.estimatedSize(), snapshotFile);
+
+        } catch (IOException | RuntimeException ex) {
+            LOG.warn("Failed to read the processed event ids from {}, will start with none: {}", snapshotFile, ex.toString());
+        }
+    }
+
+    @PreDestroy
+    void writeSnapshot() {
+        if (snapshotFile == null) {
+            return;
+        }
+
+        try {
+            List<String> lines = processedEvents.asMap().entrySet().stream()
+                    .map(e -> e.getKey() + "," + e.getValue().toEpochMilli())
+                    .toList();
+            Files.write(snapshotFile, lines);
+            LOG.info("Wrote {} processed event ids to {}", lines.size(), snapshotFile);
+
+        } catch (IOException ex) {
+            LOG.warn("Failed to write the processed event ids to {}: {}", snapshotFile, ex.toString());
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package shop.util.messaging;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+import shop.api.event.Event;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Measures how long events take from being published until they are consumed, as messaging.event.delay, and how long
+ * they take to be processed, as messaging.event.processing. Together they tell how long it takes before a write that was
+ * accepted by the composite service is visible in a core service.
+ * <p>
+ * Both are histograms tagged by event type and by the destination of the messageProcessor-in-0 binding, processing is
+ * also tagged by outcome.
+ */
+@Component
+public class EventMetrics {
+
+    private final MeterRegistry meterRegistry;
+    private final String destination;
+
+    @Autowired
+    public EventMetrics(
+            MeterRegistry meterRegistry,
+            @Value("${spring.cloud.stream.bindings.messageProcessor-in-0.destination:unknown}") String destination
+    ) {
+        this.meterRegistry = meterRegistry;
+        this.destination = destination;
+    }
+
+    /**
+     * Records the delay of the event once it is consumed, and the time it takes to process it.
+     */
+    public Mono<Void> record(Event<?, ?> event, Mono<Void> processing) {
+        return Mono.defer(() -> {
+            recordDelay(event);
+            long start = System.nanoTime();
+            return processing.doFinally(signal -> recordProcessing(event, signal, System.nanoTime() - start));
+        });
+    }
+
+    /**
+     * Records the delay of the events once they are consumed, and the time it takes to write them all at once.
+     * The bulk writer returns the events it failed to write.
+     */
+    public <E extends Event<?, ?>> Mono<List<E>> recordBulk(List<E> events, Function<List<E>, Mono<List<E>>> bulkWriter) {
+        return Mono.defer(() -> {
+            events.forEach(this::recordDelay);
+            long start = System.nanoTime();
+            return bulkWriter.apply(events).doOnNext(failed -> {
+                long duration = System.nanoTime() - start;
+                events.forEach(event -> recordProcessing(event, failed.contains(event) ? SignalType.ON_ERROR : SignalType.ON_COMPLETE, duration));
+            });
+        });
+    }
+
+    private void recordDelay(Event<?, ?> event) {
+        ZonedDateTime createdAt = event.getEventCreatedAt();
+        if (createdAt == null) {
+            return;
+        }
+
+        // Clocks of different hosts may be a bit apart, a negative delay is counted as none
+        Duration delay = Duration.between(createdAt, ZonedDateTime.now());
+        Timer.builder("messaging.event.delay")
+                .description("Time from the event being published until it is consumed")
+                .tags("type", String.valueOf(event.getEventType()), "destination", destination)
+                .publishPercentileHistogram()
+                .register(meterRegistry)
+                .record(delay.isNegative() ? Duration.ZERO : delay);
+    }
+
+    private void recordProcessing(Event<?, ?> event, SignalType signal, long nanos) {
+        Timer.builder("messaging.event.processing")
+                .description("Time to process a consumed event")
+                .tags("type", String.valueOf(event.getEventType()), "destination", destination,
+                        "outcome", switch (signal) {
+                            case ON_COMPLETE -> "success";
+                            case CANCEL -> "cancelled";
+                            default -> "failure";
+                        })
+                .publishPercentileHistogram()
+                .register(meterRegistry)
+                .record(Duration.ofNanos(nanos));
+    }
+}
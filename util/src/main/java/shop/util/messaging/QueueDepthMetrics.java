@@ -0,0 +1,71 @@
+package shop.util.messaging;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.AmqpAdmin;
+import org.springframework.amqp.core.QueueInformation;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Reports the number of messages waiting in the queue of the messageProcessor-in-0 binding, in its DLQ and in its delay
+ * queues as the messaging.queue.depth gauge, tagged by queue and kind. Together with messaging.event.delay it shows
+ * how far a consumer lags behind.
+ * <p>
+ * The queues are named the way the Rabbit binder names them: destination.group, with -instanceIndex for a partitioned
+ * consumer, and destination.group.dlq. The depths are read from the broker each time the gauges are read, NaN is reported
+ * while a queue can't be read, e.g. since it doesn't exist yet.
+ */
+@Component
+public class QueueDepthMetrics {
+
+    private static final Logger LOG = LoggerFactory.getLogger(QueueDepthMetrics.class);
+
+    private final AmqpAdmin amqpAdmin;
+
+    @Autowired
+    public QueueDepthMetrics(
+            ObjectProvider<AmqpAdmin> amqpAdmin,
+            MeterRegistry meterRegistry,
+            DelayedRetries delayedRetries,
+            @Value("${spring.cloud.stream.bindings.messageProcessor-in-0.destination:}") String destination,
+            @Value("${spring.cloud.stream.bindings.messageProcessor-in-0.group:}") String group,
+            @Value("${spring.cloud.stream.bindings.messageProcessor-in-0.consumer.partitioned:false}") boolean partitioned,
+            @Value("${spring.cloud.stream.instanceIndex:0}") int instanceIndex
+    ) {
+        this.amqpAdmin = amqpAdmin.getIfAvailable();
+
+        // Only services consuming events from a group have queues of their own
+        if (this.amqpAdmin == null || destination.isEmpty() || group.isEmpty()) {
+            return;
+        }
+
+        String queue = DelayedRetries.consumerQueue(destination, group, partitioned, instanceIndex);
+        register(meterRegistry, queue, "main");
+        register(meterRegistry, destination + "." + group + ".dlq", "dlq");
+        delayedRetries.delayQueues(queue).forEach(delayQueue -> register(meterRegistry, delayQueue, "retry"));
+        LOG.info("Will report the depth of queue {}, its DLQ and delay queues", queue);
+    }
+
+    private void register(MeterRegistry meterRegistry, String queue, String kind) {
+        Gauge.builder("messaging.queue.depth", () -> depth(queue))
+                .description("Messages waiting in the queue")
+                .tags("queue", queue, "kind", kind)
+                .register(meterRegistry);
+    }
+
+    private double depth(String queue) {
+        try {
+            QueueInformation info = amqpAdmin.getQueueInfo(queue);
+            return info == null ? Double.NaN : info.getMessageCount();
+
+        } catch (RuntimeException ex) {
+            LOG.debug("Failed to read the depth of queue {}: {}", queue, ex.toString());
+            return Double.NaN;
+        }
+    }
+}
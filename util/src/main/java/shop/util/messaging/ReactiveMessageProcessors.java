@@ -0,0 +1,363 @@
+package shop.util.messaging;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.rabbitmq.client.Channel;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.support.AmqpHeaders;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.messaging.Message;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.retry.Retry;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Creates reactive message processors, i.e. functions that consume a Flux of messages, for the Rabbit binder.
+ * <p>
+ * Messages are dispatched by the key of their payload, e.g. the productId of an event, onto app.messaging.lanes lanes.
+ * Each lane processes its messages one at a time, in order, and the lanes run in parallel. So messages with the same key
+ * are processed in the order they were received, while up to app.messaging.lanes messages are processed at the same
+ * time, without a listener thread waiting for any of them. The number of messages queued up on each lane is reported
+ * by the messaging.lane.depth gauge.
+ * <p>
+ * The consumer binding is expected to use acknowledgeMode MANUAL: a message is acked once it has been processed. A failed
+ * message is parked in a delay queue by {@link DelayedRetries} and acked once the broker has confirmed the parked copy,
+ * so that the lane goes on with the next message. To keep the order of a key, its later messages are parked behind it
+ * until it is processed or dead-lettered: the parked messages of a key carry a ticket in the x-retry-ticket header, and
+ * only the first one is processed when they come back, the others are parked again. The tickets are kept in memory,
+ * so after a restart the parked messages are processed as they come back. With several instances on one queue, the
+ * first message can come back to another instance, so a key stops holding back its later messages once the first one
+ * is app.messaging.retry.keyOrderMargin past its delay, and a message is parked behind others a bounded number of times.
+ * Strict order over retries is only kept in the partitioned mode, where all messages of a key come to one instance.
+ * Once the message has no delayed retries left, it is nacked without requeue, so that the broker dead-letters it to the
+ * DLQ declared by autoBindDlq. Messages that can't be parked are retried on their lane instead, up to
+ * app.messaging.maxAttempts attempts in all, before they are nacked.
+ * <p>
+ * Batch processors are meant for bindings in batch mode, where each poll hands over a list of messages.
+ */
+@Component
+public class ReactiveMessageProcessors {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReactiveMessageProcessors.class);
+
+    // Header holding the headers of each message in a batch, see AmqpInboundChannelAdapter.CONSOLIDATED_HEADERS
+    private static final String BATCHED_HEADERS = "amqp_batchedHeaders";
+
+    private final DelayedRetries delayedRetries;
+    private final int maxAttempts;
+    private final Duration backOffInitialInterval;
+    private final Duration backOffMaxInterval;
+    private final Duration keyOrderMargin;
+    private final AtomicInteger[] laneDepths;
+
+    @Autowired
+    public ReactiveMessageProcessors(
+            MeterRegistry meterRegistry,
+            DelayedRetries delayedRetries,
+            @Value("${app.messaging.lanes:16}") int lanes,
+            @Value("${app.messaging.maxAttempts:3}") int maxAttempts,
+            @Value("${app.messaging.backOffInitialInterval:500ms}") Duration backOffInitialInterval,
+            @Value("${app.messaging.backOffMaxInterval:1s}") Duration backOffMaxInterval,
+            @Value("${app.messaging.retry.keyOrderMargin:30s}") Duration keyOrderMargin
+    ) {
+        this.delayedRetries = delayedRetries;
+        this.maxAttempts = maxAttempts;
+        this.backOffInitialInterval = backOffInitialInterval;
+        this.backOffMaxInterval = backOffMaxInterval;
+        this.keyOrderMargin = keyOrderMargin;
+
+        this.laneDepths = new AtomicInteger[lanes];
+        for (int lane = 0; lane < lanes; lane++) {
+            laneDepths[lane] = new AtomicInteger();
+            Gauge.builder("messaging.lane.depth", laneDepths[lane], AtomicInteger::get)
+                    .description("Messages received but not yet processed by the lane")
+                    .tag("lane", String.valueOf(lane))
+                    .register(meterRegistry);
+        }
+    }
+
+    /**
+     * Creates a processor that keeps the order of the messages with the same key, as returned by keyOf for their payload.
+     */
+    public <T> Function<Flux<Message<T>>, Mono<Void>> create(Function<T, ?> keyOf, Function<T, Mono<Void>> handler) {
+        LOG.info("Will process messages on {} lanes by key, with {} attempts per message", laneDepths.length, maxAttempts);
+
+        // A key stops holding back its later messages once its first parked message is overdue by keyOrderMargin,
+        // e.g. since it came back to another instance consuming from the same queue
+        Cache<Object, ParkedKey> parkedKeys = Caffeine.newBuilder()
+                .expireAfter(Expiry.<Object, ParkedKey>writing((_, parked) -> parked.delay.plus(keyOrderMargin)))
+                .build();
+        return messages -> messages
+                .map(message -> {
+                    Object key = keyOf.apply(message.getPayload());
+                    int lane = lane(key);
+                    laneDepths[lane].incrementAndGet();
+                    return new LaneMessage<>(lane, key, message);
+                })
+                .groupBy(LaneMessage::lane)
+                // Decrement before the completion goes downstream, doFinally would run after it
+                .flatMap(lane -> lane.concatMap(laneMessage -> process(laneMessage, handler, parkedKeys)
+                        .doOnTerminate(() -> laneDepths[laneMessage.lane()].decrementAndGet())
+                        .doOnCancel(() -> laneDepths[laneMessage.lane()].decrementAndGet())), laneDepths.length)
+                .then();
+    }
+
+    private int lane(Object key) {
+        return key == null ? 0 : Math.floorMod(key.hashCode(), laneDepths.length);
+    }
+
+    /**
+     * Creates a processor for batches of messages.
+     * <p>
+     * Runs of consecutive payloads accepted by bulkable are written together by bulkWriter, which returns the payloads it
+     * could not write. Those, and all other payloads, are processed one by one by handler, with retries. Every message is
+     * acked or nacked on its own, so only the messages that fail on their own end up in the DLQ.
+     */
+    public <T> Consumer<Message<List<T>>> createBatch(
+            Predicate<T> bulkable,
+            Function<List<T>, Mono<List<T>>> bulkWriter,
+            Function<T, Mono<Void>> handler
+    ) {
+        return batch -> processBatch(batch, bulkable, bulkWriter, handler).block();
+    }
+
+    private <T> Mono<Void> processBatch(
+            Message<List<T>> batch,
+            Predicate<T> bulkable,
+            Function<List<T>, Mono<List<T>>> bulkWriter,
+            Function<T, Mono<Void>> handler
+    ) {
+        List<T> payloads = batch.getPayload();
+        Channel channel = batch.getHeaders().get(AmqpHeaders.CHANNEL, Channel.class);
+        List<Map<String, Object>> batchedHeaders = batchedHeaders(batch, payloads.size());
+        LOG.debug("Process a batch of {} messages", payloads.size());
+
+        // Process the runs in order, so that e.g. a delete is not overtaken by an earlier create of the same entity
+        return Flux.fromIterable(runs(payloads, bulkable))
+                .concatMap(run -> {
+                    if (!bulkable.test(payloads.get(run.getFirst()))) {
+                        return processOneByOne(run, payloads, channel, batchedHeaders, handler);
+                    }
+
+                    List<T> runPayloads = run.stream().map(payloads::get).toList();
+                    return Mono.defer(() -> bulkWriter.apply(runPayloads))
+                            .onErrorResume(ex -> {
+                                LOG.warn("Bulk write of {} messages failed, will process them one by one: {}", runPayloads.size(), ex.toString());
+                                return Mono.just(runPayloads);
+                            })
+                            .flatMap(failed -> {
+                                Set<T> failedPayloads = Collections.newSetFromMap(new IdentityHashMap<>());
+                                failedPayloads.addAll(failed);
+
+                                List<Integer> retries = new ArrayList<>();
+                                for (int index : run) {
+                                    if (failedPayloads.contains(payloads.get(index))) {
+                                        retries.add(index);
+                                    } else {
+                                        acknowledge(channel, deliveryTag(batchedHeaders.get(index)), true);
+                                    }
+                                }
+                                return processOneByOne(retries, payloads, channel, batchedHeaders, handler);
+                            });
+                })
+                .then();
+    }
+
+    private <T> Mono<Void> processOneByOne(List<Integer> indexes, List<T> payloads, Channel channel, List<Map<String, Object>> batchedHeaders, Function<T, Mono<Void>> handler) {
+        return Flux.fromIterable(indexes)
+                .concatMap(index -> process(payloads.get(index), channel, batchedHeaders.get(index), handler))
+                .then();
+    }
+
+    // Splits the payload indexes into runs of consecutive bulkable payloads, every other payload is a run of its own
+    private static <T> List<List<Integer>> runs(List<T> payloads, Predicate<T> bulkable) {
+        List<List<Integer>> runs = new ArrayList<>();
+        for (int i = 0; i < payloads.size(); i++) {
+            boolean isBulkable = bulkable.test(payloads.get(i));
+            if (runs.isEmpty() || !isBulkable || !bulkable.test(payloads.get(runs.getLast().getFirst()))) {
+                runs.add(new ArrayList<>());
+            }
+            runs.getLast().add(i);
+        }
+        return runs;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Map<String, Object>> batchedHeaders(Message<?> batch, int size) {
+        List<Map<String, Object>> batchedHeaders = batch.getHeaders().get(BATCHED_HEADERS, List.class);
+        List<Map<String, Object>> headers = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            headers.add(batchedHeaders != null && i < batchedHeaders.size() ? batchedHeaders.get(i) : Map.of());
+        }
+        return headers;
+    }
+
+    private static Long deliveryTag(Map<String, Object> headers) {
+        return (Long) headers.get(AmqpHeaders.DELIVERY_TAG);
+    }
+
+    // A message of a key with parked messages waits behind them, in the delay queue of the first one, unless it is that
+    // first one coming back. Then it is processed, and if it fails again it is parked again, still ahead of the others
+    private <T> Mono<Void> process(LaneMessage<T> laneMessage, Function<T, Mono<Void>> handler, Cache<Object, ParkedKey> parkedKeys) {
+        T payload = laneMessage.message().getPayload();
+        Map<String, Object> headers = laneMessage.message().getHeaders();
+        Channel channel = (Channel) headers.get(AmqpHeaders.CHANNEL);
+        Object key = laneMessage.key();
+        if (key == null || !delayedRetries.canPark(channel, headers)) {
+            return process(payload, channel, headers, handler);
+        }
+
+        Long deliveryTag = deliveryTag(headers);
+        String ticket = headers.get(DelayedRetries.TICKET_HEADER) instanceof String value ? value : null;
+        ParkedKey parked = parkedKeys.getIfPresent(key);
+
+        if (parked != null && !parked.isFirst(ticket) && !delayedRetries.canFollow(headers)) {
+            LOG.warn("Message of key {} was parked behind an earlier one too often, will process it out of order", key);
+            done(parkedKeys, key, ticket);
+            return process(payload, channel, headers, handler);
+        }
+
+        if (parked != null && !parked.isFirst(ticket)) {
+            String followTicket = ticket != null && parked.tickets.contains(ticket) ? ticket : UUID.randomUUID().toString();
+            return Mono.fromCallable(() -> delayedRetries.follow(payload, channel, headers, parked.delay, followTicket))
+                    .subscribeOn(Schedulers.boundedElastic())
+                    .doOnNext(followed -> {
+                        if (followed) {
+                            LOG.debug("Parked message of key {} behind its earlier parked message", key);
+                            parked.tickets.add(followTicket);
+                            acknowledge(channel, deliveryTag, true);
+                        } else {
+                            LOG.warn("Failed to park message of key {} behind its earlier parked message, will dead-letter it", key);
+                            done(parkedKeys, key, followTicket);
+                            acknowledge(channel, deliveryTag, false);
+                        }
+                    })
+                    .then();
+        }
+
+        // The first parked message keeps its ticket, so that it stays ahead of the ones parked behind it
+        String parkTicket = parked != null ? ticket : UUID.randomUUID().toString();
+        return Mono.defer(() -> handler.apply(payload))
+                .then(Mono.fromRunnable(() -> {
+                    done(parkedKeys, key, ticket);
+                    acknowledge(channel, deliveryTag, true);
+                }))
+                .onErrorResume(ex -> Mono.fromCallable(() -> delayedRetries.park(payload, channel, headers, parkTicket))
+                        .subscribeOn(Schedulers.boundedElastic())
+                        .doOnNext(delay -> {
+                            if (delay.isPresent()) {
+                                LOG.warn("Failed to process message, parked it for a delayed retry: {}", ex.toString());
+                                ParkedKey parkedKey = parked != null ? parked : new ParkedKey();
+                                parkedKey.tickets.add(parkTicket);
+                                parkedKey.delay = delay.get();
+                                // (Re)starts the expiry, from when the first parked message is parked for its delay
+                                parkedKeys.put(key, parkedKey);
+                                acknowledge(channel, deliveryTag, true);
+                            } else {
+                                LOG.warn("Failed to process message, will dead-letter it: {}", ex.toString());
+                                done(parkedKeys, key, parkTicket);
+                                acknowledge(channel, deliveryTag, false);
+                            }
+                        })
+                        .then())
+                .then();
+    }
+
+    // The message with the ticket is processed or dead-lettered, so it no longer holds back the later ones of its key
+    private static void done(Cache<Object, ParkedKey> parkedKeys, Object key, String ticket) {
+        ParkedKey parked = parkedKeys.getIfPresent(key);
+        if (parked != null && ticket != null && parked.tickets.remove(ticket) && parked.tickets.isEmpty()) {
+            parkedKeys.invalidate(key);
+        }
+    }
+
+    private <T> Mono<Void> process(T payload, Channel channel, Map<String, Object> headers, Function<T, Mono<Void>> handler) {
+        Long deliveryTag = deliveryTag(headers);
+        boolean canPark = delayedRetries.canPark(channel, headers);
+
+        // Parked messages are retried by the broker later on, others are retried right away
+        Mono<Void> processing = Mono.defer(() -> handler.apply(payload));
+        if (!canPark) {
+            processing = processing.retryWhen(retrySpec());
+        }
+
+        return processing
+                .then(Mono.fromRunnable(() -> acknowledge(channel, deliveryTag, true)))
+                // Parking waits for the broker to confirm the parked message, so it is done off the lane's thread
+                .onErrorResume(ex -> Mono.fromCallable(() -> canPark && delayedRetries.park(payload, channel, headers, null).isPresent())
+                        .subscribeOn(Schedulers.boundedElastic())
+                        .doOnNext(parked -> {
+                            if (parked) {
+                                LOG.warn("Failed to process message, parked it for a delayed retry: {}", ex.toString());
+                                acknowledge(channel, deliveryTag, true);
+                            } else {
+                                LOG.warn("Failed to process message, will dead-letter it: {}", ex.toString());
+                                acknowledge(channel, deliveryTag, false);
+                            }
+                        })
+                        .then())
+                .then();
+    }
+
+    private Retry retrySpec() {
+        return Retry.backoff(maxAttempts - 1, backOffInitialInterval)
+                .maxBackoff(backOffMaxInterval)
+                .onRetryExhaustedThrow((_, signal) -> signal.failure());
+    }
+
+    private record LaneMessage<T>(int lane, Object key, Message<T> message) {
+    }
+
+    /**
+     * The tickets of the parked messages of a key, in the order they were received, and the delay that the first one is
+     * parked for. It is only used on the key's lane, by one message at a time.
+     */
+    private static final class ParkedKey {
+
+        final Set<String> tickets = new LinkedHashSet<>();
+        Duration delay;
+
+        boolean isFirst(String ticket) {
+            return ticket != null && ticket.equals(tickets.iterator().next());
+        }
+    }
+
+    // Messages from other binders, e.g. the test binder, don't carry a channel and need no acknowledgement
+    private static void acknowledge(Channel channel, Long deliveryTag, boolean ack) {
+        if (channel == null || deliveryTag == null) {
+            return;
+        }
+
+        try {
+            if (ack) {
+                channel.basicAck(deliveryTag, false);
+            } else {
+                channel.basicNack(deliveryTag, false, false);
+            }
+        } catch (IOException e) {
+            LOG.warn("Failed to {} message {}: {}", ack ? "ack" : "nack", deliveryTag, e.toString());
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package shop.util.messaging;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import reactor.core.publisher.Mono;
+import shop.api.event.Event;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static shop.api.event.Event.Type.CREATE;
+import static shop.api.event.Event.Type.DELETE;
+
+class EventDeduplicatorTests {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final EventDeduplicator deduplicator = new EventDeduplicator(meterRegistry, 100, Duration.ofMinutes(10), "");
+
+    @Test
+    void redeliveredEventIsProcessedOnce() {
+        AtomicInteger processed = new AtomicInteger();
+        Event<Integer, String> event = new Event<>(DELETE, 1, null);
+
+        deduplicator.processOnce(event, () -> Mono.fromRunnable(processed::incrementAndGet)).block(TIMEOUT);
+        deduplicator.processOnce(event, () -> Mono.fromRunnable(processed::incrementAndGet)).block(TIMEOUT);
+
+        assertEquals(1, processed.get());
+        assertEquals(1.0, meterRegistry.get("messaging.events.duplicate").counter().count());
+    }
+
+    @Test
+    void failedEventIsProcessedAgain() {
+        AtomicInteger attempts = new AtomicInteger();
+        Event<Integer, String> event = new Event<>(DELETE, 1, null);
+
+        Mono<Void> failing = deduplicator.processOnce(event, () -> Mono.fromRunnable(attempts::incrementAndGet)
+                .then(Mono.error(new RuntimeException("failed"))));
+        assertThrows(RuntimeException.class, () -> failing.block(TIMEOUT));
+
+        deduplicator.processOnce(event, () -> Mono.fromRunnable(attempts::incrementAndGet)).block(TIMEOUT);
+
+        assertEquals(2, attempts.get());
+    }
+
+    @Test
+    void eventWithoutIdIsAlwaysProcessed() {
+        Event<Integer, String> event = new Event<>();
+
+        deduplicator.markProcessed(event);
+
+        assertFalse(deduplicator.isProcessed(event));
+    }
+
+    @Test
+    void onlyEventsNotProcessedAreWrittenInBulk() {
+        Event<Integer, String> processed = new Event<>(CREATE, 1, "a");
+        Event<Integer, String> failing = new Event<>(CREATE, 2, "b");
+        Event<Integer, String> written = new Event<>(CREATE, 3, "c");
+        deduplicator.markProcessed(processed);
+        List<List<Event<Integer, String>>> bulkWrites = new ArrayList<>();
+
+        List<Event<Integer, String>> failed = deduplicator.<Event<Integer, String>>writeOnce(List.of(processed, failing, written), events -> {
+            bulkWrites.add(events);
+            return Mono.just(List.of(failing));
+        }).block(TIMEOUT);
+
+        assertEquals(List.of(List.of(failing, written)), bulkWrites);
+        assertEquals(List.of(failing), failed);
+        assertFalse(deduplicator.isProcessed(failing));
+        assertTrue(deduplicator.isProcessed(written));
+    }
+
+    @Test
+    void processedEventsSurviveRestartWithSnapshot(@TempDir Path dir) {
+        String snapshotFile = dir.resolve("processed-events").toString();
+        Event<Integer, String> event = new Event<>(DELETE, 1, null);
+
+        EventDeduplicator before = new EventDeduplicator(meterRegistry, 100, Duration.ofMinutes(10), snapshotFile);
+        before.markProcessed(event);
+        before.writeSnapshot();
+
+        EventDeduplicator after = new EventDeduplicator(new SimpleMeterRegistry(), 100, Duration.ofMinutes(10), snapshotFile);
+        after.loadSnapshot();
+
+        assertTrue(after.isProcessed(event));
+    }
+}
@@ -0,0 +1,46 @@
+package shop.util.messaging;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import shop.api.event.Event;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static shop.api.event.Event.Type.CREATE;
+import static shop.api.event.Event.Type.DELETE;
+
+class EventMetricsTests {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final EventMetrics metrics = new EventMetrics(meterRegistry, "products");
+
+    @Test
+    void delayAndProcessingAreRecordedByTypeAndOutcome() {
+        metrics.record(new Event<>(DELETE, 1, null), Mono.empty()).block(TIMEOUT);
+        Mono<Void> failing = metrics.record(new Event<>(DELETE, 2, null), Mono.error(new RuntimeException("failed")));
+        assertThrows(RuntimeException.class, () -> failing.block(TIMEOUT));
+
+        assertEquals(2, meterRegistry.get("messaging.event.delay").tags("type", "DELETE", "destination", "products").timer().count());
+        assertEquals(1, meterRegistry.get("messaging.event.processing").tags("type", "DELETE", "outcome", "success").timer().count());
+        assertEquals(1, meterRegistry.get("messaging.event.processing").tags("type", "DELETE", "outcome", "failure").timer().count());
+    }
+
+    @Test
+    void bulkWriteIsRecordedForEachEvent() {
+        Event<Integer, String> written = new Event<>(CREATE, 1, "a");
+        Event<Integer, String> failed = new Event<>(CREATE, 2, "b");
+
+        metrics.<Event<Integer, String>>recordBulk(List.of(written, failed), _ -> Mono.just(List.of(failed))).block(TIMEOUT);
+
+        assertEquals(2, meterRegistry.get("messaging.event.delay").tags("type", "CREATE").timer().count());
+        assertEquals(1, meterRegistry.get("messaging.event.processing").tags("type", "CREATE", "outcome", "success").timer().count());
+        assertEquals(1, meterRegistry.get("messaging.event.processing").tags("type", "CREATE", "outcome", "failure").timer().count());
+    }
+}
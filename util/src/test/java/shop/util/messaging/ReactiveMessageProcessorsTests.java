@@ -0,0 +1,364 @@
+package shop.util.messaging;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.amqp.core.Declarables;
+import org.springframework.amqp.core.Queue;
+import org.springframework.amqp.support.AmqpHeaders;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.*;
+
+class ReactiveMessageProcessorsTests {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final DelayedRetries delayedRetries =
+            new DelayedRetries(new ObjectMapper(), meterRegistry, true, List.of(Duration.ofSeconds(1), Duration.ofSeconds(10)), TIMEOUT);
+    private final ReactiveMessageProcessors processors =
+            new ReactiveMessageProcessors(meterRegistry, delayedRetries, 4, 3, Duration.ofMillis(1), Duration.ofMillis(10), Duration.ofSeconds(30));
+    private final Channel channel = mock(Channel.class);
+
+    @BeforeEach
+    void setUp() throws Exception {
+        delayedRetries.declarables("products.productsGroup");
+        when(channel.waitForConfirms(anyLong())).thenReturn(true);
+    }
+
+    @Test
+    void delayQueuesAreDeclaredPerDelay() {
+        Declarables declarables = delayedRetries.declarables("products.productsGroup");
+
+        List<Queue> queues = declarables.getDeclarablesByType(Queue.class);
+        assertEquals(List.of("products.productsGroup.retry.1000", "products.productsGroup.retry.10000"), queues.stream().map(Queue::getName).toList());
+        assertEquals(Map.of("x-message-ttl", 1000L, "x-dead-letter-exchange", "", "x-dead-letter-routing-key", "products.productsGroup"),
+                queues.getFirst().getArguments());
+    }
+
+    @Test
+    void processedMessagesAreAcked() throws IOException {
+        processors.<String>create(payload -> payload, _ -> Mono.empty())
+                .apply(Flux.just(message("a", 1), message("b", 2)))
+                .block(TIMEOUT);
+
+        verify(channel).basicAck(1, false);
+        verify(channel).basicAck(2, false);
+        verify(channel, never()).basicNack(anyLong(), anyBoolean(), anyBoolean());
+    }
+
+    @Test
+    void failedMessagesAreRetriedThenNackedWithoutRequeue() throws IOException {
+        AtomicInteger attempts = new AtomicInteger();
+
+        processors.<String>create(payload -> payload, payload -> payload.equals("bad")
+                        ? Mono.fromRunnable(attempts::incrementAndGet).then(Mono.error(new RuntimeException("failed")))
+                        : Mono.empty())
+                .apply(Flux.just(message("bad", 1), message("good", 2)))
+                .block(TIMEOUT);
+
+        // A failing message doesn't stop the processing of the following messages
+        assertEquals(3, attempts.get());
+        verify(channel).basicNack(1, false, false);
+        verify(channel).basicAck(2, false);
+    }
+
+    @Test
+    void failedMessageIsParkedInDelayQueue() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+
+        processors.<String>create(payload -> payload, payload -> payload.equals("bad")
+                        ? Mono.fromRunnable(attempts::incrementAndGet).then(Mono.error(new RuntimeException("failed")))
+                        : Mono.empty())
+                .apply(Flux.just(consumedMessage("bad", 1, null), consumedMessage("good", 2, null)))
+                .block(TIMEOUT);
+
+        // The failed message isn't retried on the lane, but published to the first delay queue and confirmed before the ack
+        assertEquals(1, attempts.get());
+        verify(channel, never()).queueDeclare(anyString(), anyBoolean(), anyBoolean(), anyBoolean(), any());
+        ArgumentCaptor<AMQP.BasicProperties> properties = ArgumentCaptor.forClass(AMQP.BasicProperties.class);
+        verify(channel).basicPublish(eq(""), eq("products.productsGroup.retry.1000"), properties.capture(), eq("\"bad\"".getBytes()));
+        assertEquals(1, properties.getValue().getHeaders().get(DelayedRetries.ATTEMPT_HEADER));
+        assertEquals("1", properties.getValue().getHeaders().get("partitionKey"));
+        verify(channel).waitForConfirms(TIMEOUT.toMillis());
+        verify(channel).basicAck(1, false);
+        verify(channel).basicAck(2, false);
+        verify(channel, never()).basicNack(anyLong(), anyBoolean(), anyBoolean());
+    }
+
+    @Test
+    void unconfirmedParkedMessageIsDeadLettered() throws Exception {
+        when(channel.waitForConfirms(anyLong())).thenReturn(false);
+
+        processors.<String>create(payload -> payload, _ -> Mono.error(new RuntimeException("failed")))
+                .apply(Flux.just(consumedMessage("bad", 1, null)))
+                .block(TIMEOUT);
+
+        verify(channel).basicPublish(eq(""), eq("products.productsGroup.retry.1000"), any(), any(byte[].class));
+        verify(channel).basicNack(1, false, false);
+        verify(channel, never()).basicAck(anyLong(), anyBoolean());
+    }
+
+    @Test
+    void messageFromQueueWithoutDelayQueuesIsRetriedOnItsLane() throws IOException {
+        AtomicInteger attempts = new AtomicInteger();
+
+        processors.<String>create(payload -> payload, _ -> Mono.fromRunnable(attempts::incrementAndGet).then(Mono.error(new RuntimeException("failed"))))
+                .apply(Flux.just(MessageBuilder.fromMessage(consumedMessage("bad", 1, null))
+                        .setHeader(AmqpHeaders.CONSUMER_QUEUE, "reviews.reviewsGroup")
+                        .build()))
+                .block(TIMEOUT);
+
+        assertEquals(3, attempts.get());
+        verify(channel, never()).basicPublish(anyString(), anyString(), any(), any());
+        verify(channel).basicNack(1, false, false);
+    }
+
+    @Test
+    void retriedMessageIsParkedInNextDelayQueue() throws IOException {
+        processors.<String>create(payload -> payload, _ -> Mono.error(new RuntimeException("failed")))
+                .apply(Flux.just(consumedMessage("bad", 1, 1)))
+                .block(TIMEOUT);
+
+        ArgumentCaptor<AMQP.BasicProperties> properties = ArgumentCaptor.forClass(AMQP.BasicProperties.class);
+        verify(channel).basicPublish(eq(""), eq("products.productsGroup.retry.10000"), properties.capture(), any(byte[].class));
+        assertEquals(2, properties.getValue().getHeaders().get(DelayedRetries.ATTEMPT_HEADER));
+        verify(channel).basicAck(1, false);
+    }
+
+    @Test
+    void messageWithoutDelayedRetriesLeftIsDeadLettered() throws IOException {
+        processors.<String>create(payload -> payload, _ -> Mono.error(new RuntimeException("failed")))
+                .apply(Flux.just(consumedMessage("bad", 1, 2)))
+                .block(TIMEOUT);
+
+        verify(channel, never()).basicPublish(anyString(), anyString(), any(), any());
+        verify(channel).basicNack(1, false, false);
+    }
+
+    @Test
+    void messagesWithoutChannelAreProcessed() {
+        AtomicInteger processed = new AtomicInteger();
+
+        processors.<String>create(payload -> payload, _ -> Mono.fromRunnable(processed::incrementAndGet))
+                .apply(Flux.just(MessageBuilder.withPayload("a").build()))
+                .block(TIMEOUT);
+
+        assertEquals(1, processed.get());
+    }
+
+    @Test
+    void messagesWithSameKeyAreProcessedInOrder() {
+        List<String> processed = new CopyOnWriteArrayList<>();
+
+        // The first message of key 1 is slow, so the message of key 2 overtakes it, but the second message of key 1 doesn't
+        processors.<String>create(payload -> payload.charAt(0), payload -> Mono.delay(Duration.ofMillis(payload.equals("1a") ? 200 : 0))
+                        .doOnNext(_ -> processed.add(payload))
+                        .then())
+                .apply(Flux.just(message("1a", 1), message("1b", 2), message("2a", 3)))
+                .block(TIMEOUT);
+
+        assertEquals(List.of("2a", "1a", "1b"), processed);
+        for (int lane = 0; lane < 4; lane++) {
+            assertEquals(0.0, meterRegistry.get("messaging.lane.depth").tag("lane", String.valueOf(lane)).gauge().value());
+        }
+    }
+
+    @Test
+    void laterMessagesOfParkedKeyDontOvertakeIt() throws Exception {
+        List<String> processed = new CopyOnWriteArrayList<>();
+        AtomicInteger failures = new AtomicInteger();
+        Function<Flux<Message<String>>, Mono<Void>> processor = processors.create(payload -> payload.charAt(0), payload ->
+                payload.equals("1-create") && failures.getAndIncrement() == 0
+                        ? Mono.error(new RuntimeException("failed"))
+                        : Mono.fromRunnable(() -> processed.add(payload)));
+
+        // The create of key 1 fails and is parked, its delete is parked behind it, key 2 is not held back
+        processor.apply(Flux.just(consumedMessage("1-create", 1, null), consumedMessage("1-delete", 2, null), consumedMessage("2-create", 3, null)))
+                .block(TIMEOUT);
+
+        assertEquals(List.of("2-create"), processed);
+        ArgumentCaptor<AMQP.BasicProperties> properties = ArgumentCaptor.forClass(AMQP.BasicProperties.class);
+        verify(channel, times(2)).basicPublish(eq(""), eq("products.productsGroup.retry.1000"), properties.capture(), any(byte[].class));
+        Map<String, Object> createHeaders = properties.getAllValues().get(0).getHeaders();
+        Map<String, Object> deleteHeaders = properties.getAllValues().get(1).getHeaders();
+        assertEquals(1, createHeaders.get(DelayedRetries.ATTEMPT_HEADER));
+        assertEquals(0, deleteHeaders.get(DelayedRetries.ATTEMPT_HEADER), "A message parked behind another one has not failed");
+        verify(channel).basicAck(1, false);
+        verify(channel).basicAck(2, false);
+
+        // The delete comes back first, e.g. since the create was parked again for a longer delay, and waits once more
+        processor.apply(Flux.just(returnedMessage("1-delete", 4, deleteHeaders))).block(TIMEOUT);
+        assertEquals(List.of("2-create"), processed);
+        verify(channel, times(3)).basicPublish(eq(""), eq("products.productsGroup.retry.1000"), properties.capture(), any(byte[].class));
+        assertEquals(deleteHeaders.get(DelayedRetries.TICKET_HEADER), properties.getValue().getHeaders().get(DelayedRetries.TICKET_HEADER));
+
+        processor.apply(Flux.just(returnedMessage("1-create", 5, createHeaders), returnedMessage("1-delete", 6, deleteHeaders))).block(TIMEOUT);
+        assertEquals(List.of("2-create", "1-create", "1-delete"), processed);
+        verify(channel, never()).basicNack(anyLong(), anyBoolean(), anyBoolean());
+    }
+
+    @Test
+    void laterMessagesStopWaitingWhenParkedMessageDoesNotComeBack() throws Exception {
+        DelayedRetries shortRetries = new DelayedRetries(new ObjectMapper(), meterRegistry, true, List.of(Duration.ofMillis(50)), TIMEOUT);
+        shortRetries.declarables("products.productsGroup");
+        ReactiveMessageProcessors shortProcessors =
+                new ReactiveMessageProcessors(meterRegistry, shortRetries, 4, 3, Duration.ofMillis(1), Duration.ofMillis(10), Duration.ofMillis(50));
+        List<String> processed = new CopyOnWriteArrayList<>();
+        Function<Flux<Message<String>>, Mono<Void>> processor = shortProcessors.create(payload -> payload.charAt(0), payload ->
+                payload.equals("1-create") ? Mono.error(new RuntimeException("failed")) : Mono.fromRunnable(() -> processed.add(payload)));
+
+        processor.apply(Flux.just(consumedMessage("1-create", 1, null), consumedMessage("1-delete", 2, null))).block(TIMEOUT);
+        ArgumentCaptor<AMQP.BasicProperties> properties = ArgumentCaptor.forClass(AMQP.BasicProperties.class);
+        verify(channel, times(2)).basicPublish(eq(""), eq("products.productsGroup.retry.50"), properties.capture(), any(byte[].class));
+        Map<String, Object> deleteHeaders = properties.getAllValues().get(1).getHeaders();
+        assertEquals(List.of(), processed);
+
+        // The create comes back to another instance, so the delete stops waiting for it once its delay and margin are over
+        Mono.delay(Duration.ofMillis(500)).block();
+        processor.apply(Flux.just(returnedMessage("1-delete", 3, deleteHeaders))).block(TIMEOUT);
+
+        assertEquals(List.of("1-delete"), processed);
+        verify(channel, times(2)).basicPublish(anyString(), anyString(), any(), any());
+        verify(channel).basicAck(3, false);
+    }
+
+    @Test
+    void messageIsParkedBehindAnotherOneABoundedNumberOfTimes() throws Exception {
+        List<String> processed = new CopyOnWriteArrayList<>();
+        Function<Flux<Message<String>>, Mono<Void>> processor = processors.create(payload -> payload.charAt(0), payload ->
+                payload.equals("1-create") ? Mono.error(new RuntimeException("failed")) : Mono.fromRunnable(() -> processed.add(payload)));
+
+        processor.apply(Flux.just(consumedMessage("1-create", 1, null), consumedMessage("1-delete", 2, null))).block(TIMEOUT);
+        ArgumentCaptor<AMQP.BasicProperties> properties = ArgumentCaptor.forClass(AMQP.BasicProperties.class);
+        verify(channel, times(2)).basicPublish(eq(""), eq("products.productsGroup.retry.1000"), properties.capture(), any(byte[].class));
+        Map<String, Object> deleteHeaders = new HashMap<>(properties.getAllValues().get(1).getHeaders());
+        assertEquals(1, deleteHeaders.get(DelayedRetries.FOLLOWED_HEADER));
+
+        // Twice the number of delays is the most a message is parked behind another one, then it is processed
+        deleteHeaders.put(DelayedRetries.FOLLOWED_HEADER, 4);
+        processor.apply(Flux.just(returnedMessage("1-delete", 3, deleteHeaders))).block(TIMEOUT);
+
+        assertEquals(List.of("1-delete"), processed);
+        verify(channel).basicAck(3, false);
+    }
+
+    @Test
+    void batchIsWrittenInBulk() throws IOException {
+        List<List<String>> bulkWrites = new ArrayList<>();
+
+        processors.<String>createBatch(_ -> true, payloads -> {
+                    bulkWrites.add(payloads);
+                    return Mono.just(List.of());
+                }, _ -> Mono.error(new IllegalStateException("not expected")))
+                .accept(batch(List.of("a", "b", "c"), 1, 2, 3));
+
+        assertEquals(List.of(List.of("a", "b", "c")), bulkWrites);
+        verify(channel).basicAck(1, false);
+        verify(channel).basicAck(2, false);
+        verify(channel).basicAck(3, false);
+    }
+
+    @Test
+    void onlyFailedMessagesOfBatchAreDeadLettered() throws IOException {
+        List<String> processed = new ArrayList<>();
+
+        // The bulk write fails for "bad", which then fails on its own too
+        processors.<String>createBatch(_ -> true, payloads -> Mono.just(payloads.stream().filter("bad"::equals).toList()),
+                        payload -> {
+                            processed.add(payload);
+                            return Mono.error(new RuntimeException("failed"));
+                        })
+                .accept(batch(List.of("a", "bad", "c"), 1, 2, 3));
+
+        assertEquals(List.of("bad", "bad", "bad"), processed);
+        verify(channel).basicAck(1, false);
+        verify(channel).basicNack(2, false, false);
+        verify(channel).basicAck(3, false);
+    }
+
+    @Test
+    void failedBulkWriteFallsBackToOneByOne() throws IOException {
+        List<String> processed = new ArrayList<>();
+
+        processors.<String>createBatch(_ -> true, _ -> Mono.error(new RuntimeException("bulk write failed")),
+                        payload -> Mono.fromRunnable(() -> processed.add(payload)))
+                .accept(batch(List.of("a", "b"), 1, 2));
+
+        assertEquals(List.of("a", "b"), processed);
+        verify(channel).basicAck(1, false);
+        verify(channel).basicAck(2, false);
+    }
+
+    @Test
+    void messagesThatAreNotBulkableKeepTheirOrder() {
+        List<String> processed = new ArrayList<>();
+
+        processors.<String>createBatch(payload -> payload.startsWith("create"), payloads -> {
+                    processed.add(String.join("+", payloads));
+                    return Mono.just(List.of());
+                }, payload -> Mono.fromRunnable(() -> processed.add(payload)))
+                .accept(batch(List.of("create-1", "create-2", "delete-1", "create-3"), 1, 2, 3, 4));
+
+        assertEquals(List.of("create-1+create-2", "delete-1", "create-3"), processed);
+    }
+
+    private Message<List<String>> batch(List<String> payloads, long... deliveryTags) {
+        List<Map<String, Object>> batchedHeaders = Arrays.stream(deliveryTags)
+                .mapToObj(deliveryTag -> Map.<String, Object>of(AmqpHeaders.DELIVERY_TAG, deliveryTag))
+                .toList();
+        return MessageBuilder.withPayload(payloads)
+                .setHeader(AmqpHeaders.CHANNEL, channel)
+                .setHeader("amqp_batchedHeaders", batchedHeaders)
+                .build();
+    }
+
+    // A message as received from a consumer queue, after the given number of failed attempts
+    private Message<String> consumedMessage(String payload, long deliveryTag, Integer failedAttempts) {
+        return MessageBuilder.withPayload(payload)
+                .setHeader(AmqpHeaders.CHANNEL, channel)
+                .setHeader(AmqpHeaders.DELIVERY_TAG, deliveryTag)
+                .setHeader(AmqpHeaders.CONSUMER_QUEUE, "products.productsGroup")
+                .setHeader("partitionKey", "1")
+                .setHeader(DelayedRetries.ATTEMPT_HEADER, failedAttempts)
+                .build();
+    }
+
+    // A parked message as it comes back from its delay queue
+    private Message<String> returnedMessage(String payload, long deliveryTag, Map<String, Object> parkedHeaders) {
+        return MessageBuilder.withPayload(payload)
+                .copyHeaders(parkedHeaders)
+                .setHeader(AmqpHeaders.CHANNEL, channel)
+                .setHeader(AmqpHeaders.DELIVERY_TAG, deliveryTag)
+                .setHeader(AmqpHeaders.CONSUMER_QUEUE, "products.productsGroup")
+                .build();
+    }
+
+    private Message<String> message(String payload, long deliveryTag) {
+        return MessageBuilder.withPayload(payload)
+                .setHeader(AmqpHeaders.CHANNEL, channel)
+                .setHeader(AmqpHeaders.DELIVERY_TAG, deliveryTag)
+                .build();
+    }
+}